@@ -0,0 +1,105 @@
+package com.palyrobotics.sensors;
+
+import com.palyrobotics.util.PointCloud;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Decodes a whole byte stream per op, fed in chunks the size of a serial read.
+ * The stream comes from a {@link LidarRecorder} log when recording is set (-p recording=FILE), otherwise it is
+ * built from out.txt repeated for a few revolutions
+ */
+@State(Scope.Thread)
+public class LidarDecodeBenchmark {
+
+    private static final int REVOLUTIONS = 10;
+    private static final int SAMPLES_PER_PACKET = 40;
+
+    @Param({""})
+    public String recording;
+
+    @Param({"256"})
+    public int readSize;
+
+    private byte[] stream;
+    private final LidarPacketDecoder decoder = new LidarPacketDecoder();
+    private final LidarPacket packet = new LidarPacket();
+
+    @Setup
+    public void setup() throws IOException {
+        stream = recording.isEmpty() ? synthesize("out.txt") : load(recording);
+    }
+
+    @Benchmark
+    public long decode() {
+        long sum = 0;
+        int offset = 0;
+        while (offset < stream.length) {
+            offset += decoder.feed(stream, offset, Math.min(readSize, stream.length - offset));
+            while (decoder.next(packet)) {
+                sum += packet.getSampleQuantity();
+            }
+        }
+        return sum;
+    }
+
+    // Strips the record headers off a recording so only the bytes the lidar sent are left
+    private static byte[] load(String file) throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file))).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer stream = ByteBuffer.allocate(log.capacity());
+        log.position(LidarRecorder.FILE_HEADER_SIZE);
+        while (log.remaining() >= LidarRecorder.RECORD_HEADER_SIZE) {
+            log.getLong();
+            int length = log.getShort() & 0xFFFF;
+            if (log.remaining() < length) {
+                break;
+            }
+            stream.put(log.array(), log.position(), length);
+            log.position(log.position() + length);
+        }
+        byte[] bytes = new byte[stream.position()];
+        stream.flip().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] synthesize(String file) throws IOException {
+        int samples = 0;
+        float[] angles = new float[1024], distances = new float[1024];
+        try (BufferedReader bf = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = bf.readLine()) != null && samples < angles.length) {
+                var split = line.split(",");
+                angles[samples] = Float.parseFloat(split[0]);
+                distances[samples] = Float.parseFloat(split[1]);
+                samples++;
+            }
+        }
+
+        int packetsPerRevolution = (samples + SAMPLES_PER_PACKET - 1) / SAMPLES_PER_PACKET;
+        ByteBuffer out = ByteBuffer.allocate(REVOLUTIONS * packetsPerRevolution * LidarPacketDecoder.MAX_PACKET_SIZE);
+        float[] packetDistances = new float[SAMPLES_PER_PACKET];
+        for (int revolution = 0; revolution < REVOLUTIONS; revolution++) {
+            for (int first = 0; first < samples; first += SAMPLES_PER_PACKET) {
+                int count = Math.min(SAMPLES_PER_PACKET, samples - first);
+                System.arraycopy(distances, first, packetDistances, 0, count);
+                float start = angles[first];
+                float step = count > 1 ? (angles[first + count - 1] - start) / (count - 1) : 0;
+                LidarPacketEncoder.encode(out, first == 0 ? 1 : 0, start, start + step * count, packetDistances, count);
+            }
+        }
+        byte[] bytes = new byte[out.position()];
+        out.flip().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,53 @@
+package com.palyrobotics.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A full doICP, one op is one scan matched until it converges.
+ * The scan is the reference moved by a known transform and the initial guess is the identity, like ICPTest does
+ */
+@State(Scope.Thread)
+public class ICPBenchmark {
+
+    private static final long TIMEOUT = Long.MAX_VALUE / 2; // Never time out, the benchmark measures time to converge
+
+    @Param({"test1cycle.txt", "out.txt"})
+    public String file;
+
+    @Param({"POINT_TO_POINT", "POINT_TO_LINE"})
+    public ICP.Mode mode;
+
+    @Param({"false", "true"})
+    public boolean pyramid;
+
+    @Param({"false", "true"})
+    public boolean field; // A DistanceField instead of the k-d tree, only point to point looks points up
+
+    private ICP icp;
+    private PointCloud scan;
+
+    @Setup
+    public void setup() throws IOException {
+        PointCloud reference = PointCloud.fromPolarFile(file);
+        scan = new Transform(0.05, -50, -10).apply(reference);
+        icp = field ? new ICP(TIMEOUT, Double.POSITIVE_INFINITY, DistanceField.build(reference))
+                    : new ICP(TIMEOUT, new HashMap<>(Map.of(reference, new Transform())));
+        icp.setMode(mode);
+        if (pyramid) {
+            icp.setPyramid();
+        }
+    }
+
+    @Benchmark
+    public Transform doICP() {
+        return icp.doICP(scan, new Transform());
+    }
+}
@@ -0,0 +1,60 @@
+package com.palyrobotics.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Closest point lookups against a saved scan, one query per op.
+ * The queries are scan points moved up to 100mm in a random direction, about what a bad pose guess does
+ */
+@State(Scope.Thread)
+public class PointCloudBenchmark {
+
+    private static final int QUERIES = 1024; // Power of two so the next query is a mask away
+
+    @Param({"test1cycle.txt", "out.txt"})
+    public String file;
+
+    private PointCloud reference;
+    private KdTree tree;
+    private final double[] queryXs = new double[QUERIES], queryYs = new double[QUERIES];
+    private final Point[] queries = new Point[QUERIES];
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        reference = PointCloud.fromPolarFile(file);
+        tree = new KdTree(reference);
+
+        Random random = new Random(8);
+        for (int i = 0; i < QUERIES; i++) {
+            int j = random.nextInt(reference.size());
+            queryXs[i] = reference.getX(j) + (random.nextDouble() - 0.5) * 200;
+            queryYs[i] = reference.getY(j) + (random.nextDouble() - 0.5) * 200;
+            queries[i] = new Point(queryXs[i], queryYs[i]);
+        }
+    }
+
+    @Benchmark
+    public Point getClosestPoint() {
+        return reference.getClosestPoint(queries[next++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    public int getClosestIndex() {
+        int i = next++ & (QUERIES - 1);
+        return reference.getClosestIndex(queryXs[i], queryYs[i]);
+    }
+
+    @Benchmark
+    public int kdTreeNearest() {
+        int i = next++ & (QUERIES - 1);
+        return tree.nearest(queryXs[i], queryYs[i], Double.POSITIVE_INFINITY);
+    }
+}
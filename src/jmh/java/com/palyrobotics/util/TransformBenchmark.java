@@ -0,0 +1,47 @@
+package com.palyrobotics.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+// Transforming single points and a whole revolution (out.txt), the allocating and the in place versions
+@State(Scope.Thread)
+public class TransformBenchmark {
+
+    private Transform transform;
+    private Point point;
+    private PointCloud scan;
+    private PointCloud destination;
+
+    @Setup
+    public void setup() throws IOException {
+        transform = new Transform(0.3, 120, -45);
+        point = new Point(1200, 800);
+        scan = PointCloud.fromPolarFile("out.txt");
+        destination = new PointCloud(scan.size());
+    }
+
+    @Benchmark
+    public Point applyPoint() {
+        return transform.apply(point);
+    }
+
+    @Benchmark
+    public PointCloud applyCloud() {
+        return transform.apply(scan);
+    }
+
+    @Benchmark
+    public PointCloud applyCloudInPlace() {
+        transform.apply(scan, destination);
+        return destination;
+    }
+
+    @Benchmark
+    public Transform inverse() {
+        return transform.inverse();
+    }
+}
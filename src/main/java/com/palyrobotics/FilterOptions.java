@@ -0,0 +1,40 @@
+package com.palyrobotics;
+
+import com.palyrobotics.util.Deskew;
+import com.palyrobotics.util.ScanFilter;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+// The ScanFilter arguments the drivers that run ICP on this machine share
+class FilterOptions {
+
+    private FilterOptions() {
+    }
+
+    static void addArguments(ArgumentParser parser) {
+        parser.addArgument("--max-range").type(Double.class).setDefault(Double.POSITIVE_INFINITY).help("mm, further samples are dropped");
+        parser.addArgument("--points").type(Integer.class).setDefault(0).help("merge samples down to about this many points a revolution");
+        parser.addArgument("--voxel").type(Double.class).setDefault(0.0).help("merge neighbouring samples in the same voxel of this size in mm");
+        parser.addArgument("--outliers").type(Double.class).setDefault(0.0).help("drop points this many deviations further from their neighbours than usual, 0 is off");
+        parser.addArgument("--deskew").action(Arguments.storeTrue()).help("make up for the lidar moving during a revolution, with the velocity from ICP");
+    }
+
+    // null without --deskew, otherwise it has to get the poses from ICP
+    static Deskew deskew(Namespace options) {
+        return options.getBoolean("deskew") ? new Deskew() : null;
+    }
+
+    static ScanFilter filter(Namespace options, Deskew deskew) {
+        ScanFilter filter = new ScanFilter();
+        filter.setRange(0, options.getDouble("max_range"));
+        if (options.getInt("points") > 0) {
+            filter.setTargetPoints(options.getInt("points"));
+        } else if (options.getDouble("voxel") > 0) {
+            filter.setVoxelSize(options.getDouble("voxel"));
+        }
+        filter.setOutlierDeviations(options.getDouble("outliers"));
+        filter.setDeskew(deskew);
+        return filter;
+    }
+}
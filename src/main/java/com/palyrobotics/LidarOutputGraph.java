@@ -3,75 +3,252 @@ package com.palyrobotics;
 import com.esotericsoftware.kryonet.Client;
 import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
+import com.palyrobotics.net.LidarScan;
+import com.palyrobotics.net.Messages;
+import com.palyrobotics.net.PoseMessage;
+import com.palyrobotics.net.SequenceTracker;
+import com.palyrobotics.net.Subscribe;
+import com.palyrobotics.util.ICP;
+import com.palyrobotics.util.PointCloud;
+import com.palyrobotics.util.PointRing;
+import com.palyrobotics.util.Revolution;
+import com.palyrobotics.util.RevolutionAssembler;
+import com.palyrobotics.util.Transform;
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.scene.Group;
 import javafx.scene.Scene;
-import javafx.scene.shape.Circle;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
 import javafx.stage.Stage;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Draws what the lidar sees onto one canvas. Kryonet's thread only puts points into a ring, and every animation pulse
+ * redraws the points from the last persistence window, so the FX thread does the same amount of work per frame however
+ * fast points come in. With a reference the scans also go through ICP on a thread of its own, and the reference is
+ * drawn where ICP thinks it is. Otherwise it shows the pose from a server running ICP (LidarServer --pose), with the
+ * reference drawn at that pose when --server-pose gives one
+ */
 public class LidarOutputGraph extends Application {
 
+    private static final int SIZE = 1500; // px
+    private static final double SCALE = 1 / 5.0; // px per mm
+    private static final int AGE_LEVELS = 4; // Older points are drawn fainter, in this many steps
+    private static final int RING_CAPACITY = 1 << 16;
+    private static final long ICP_TIMEOUT = 10_000_000; // ns
+
     // i guess naming conventions are a thing
-    private final String host = "10.1.10.205";
-    private final int tcpPort = 5807;
+    private String host;
+    private int tcpPort;
+    private int udpPort; // Set to the server's --udp port to get scans over UDP, -1 is TCP only
+    private long persistence; // ns a point stays on screen
+    private String referenceFile;
+    private boolean serverPose; // Draw the reference at the server's pose instead of running ICP here
 
-    private Group root;
+    private final PointRing points = new PointRing(RING_CAPACITY); // Kryo thread in, FX thread out
+    private final RevolutionAssembler assembler = new RevolutionAssembler(); // Kryo thread in, ICP thread out
+    private volatile Transform pose; // Latest ICP transform, null until there is one
+    private PointCloud reference, placedReference;
 
-    private int circleNumber = 0;
-    private int maxCircles = 750;
+    private GraphicsContext graphics;
+    private long lastPulse;
+    private double frameRate;
+    private int drawn;
 
     public static void main(String[] args) {
         launch(args);
     }
 
+    @Override
+    public void init() {
+        ArgumentParser parser = ArgumentParsers.newFor("LidarOutputGraph").build()
+                .description("Draws lidar scans from a LidarServer");
+        parser.addArgument("--host").setDefault("10.1.10.205");
+        parser.addArgument("--port").type(Integer.class).setDefault(5807);
+        parser.addArgument("--udp").type(Integer.class).setDefault(-1).help("the server's --udp port, -1 is TCP only");
+        parser.addArgument("--persistence").type(Double.class).setDefault(0.5).help("seconds a point stays on screen");
+        parser.addArgument("--reference").help("reference scan as angle,distance lines, runs ICP and draws the pose");
+        parser.addArgument("--server-pose").action(Arguments.storeTrue())
+                .help("with --reference, draw it at the pose the server sends instead of running ICP here");
+        Namespace options;
+        try {
+            options = parser.parseArgs(getParameters().getRaw().toArray(new String[0]));
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            Platform.exit();
+            return;
+        }
+        host = options.getString("host");
+        tcpPort = options.getInt("port");
+        udpPort = options.getInt("udp");
+        persistence = (long) (options.getDouble("persistence") * 1e9);
+        referenceFile = options.getString("reference");
+        serverPose = options.getBoolean("server_pose");
+    }
+
     @Override
     public void start(Stage primaryStage) throws Exception {
         primaryStage.setTitle("Lidar Output");
-        root = new Group();
-        primaryStage.setScene(new Scene(root));
+        Canvas canvas = new Canvas(SIZE, SIZE);
+        graphics = canvas.getGraphicsContext2D();
+        primaryStage.setScene(new Scene(new Group(canvas)));
         primaryStage.show();
 
+        if (referenceFile != null) {
+            reference = PointCloud.fromPolarFile(referenceFile);
+            placedReference = new PointCloud(reference.size());
+            if (!serverPose) {
+                startICP();
+            }
+        }
+
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                draw(now);
+            }
+        }.start();
+
         setUpClient();
     }
 
     private void setUpClient() throws IOException {
-        Client client = new Client();
-        client.getKryo().register(float[].class);
+        Client client = new Client(Messages.WRITE_BUFFER_SIZE, Messages.OBJECT_BUFFER_SIZE);
+        Messages.register(client.getKryo());
+        SequenceTracker tracker = new SequenceTracker();
         client.addListener(new Listener() {
             @Override
             public void connected(Connection connection) {
                 System.out.println("Connected");
+                tracker.reset();
+                connection.sendTCP(new Subscribe(true)); // Servers running ICP only send scans to clients that ask
             }
 
             @Override
             public void received(Connection connection, Object object) {
-                if (object instanceof float[]) { // Filters out keepAlive messages
-                    Platform.runLater(() ->
-                        drawShape((float[]) object)); // Still will send float arrays even if there is a point class because I believe they are more versatile
-                };
+                long now = System.nanoTime(); // The same clock as the animation pulses
+                if (object instanceof LidarScan) {
+                    var scan = (LidarScan) object;
+                    if (!tracker.accept(scan)) {
+                        return; // Older than what is already drawn
+                    }
+                    for (int i = 0; i < scan.size(); i++) {
+                        addSample(scan.getAngle(i), scan.getDistance(i), now);
+                    }
+                } else if (object instanceof float[]) { // Filters out keepAlive messages
+                    addSample(((float[]) object)[0], ((float[]) object)[1], now);
+                } else if (object instanceof PoseMessage && !localICP()) { // The server's ICP, ours wins when there is one
+                    var message = (PoseMessage) object;
+                    pose = new Transform(message.theta, message.tx, message.ty);
+                }
             }
         });
         new Thread(client).start();
 
-        client.connect(4000, host, tcpPort);
+        client.connect(4000, host, tcpPort, udpPort);
+    }
+
+    private void addSample(float angle, float distance, long time) {
+        if (distance <= 0) {
+            return; // No reading
+        }
+        double radians = Math.toRadians(angle);
+        points.add((float) (distance * Math.cos(radians)), (float) (distance * Math.sin(radians)), time);
+        if (localICP()) {
+            assembler.addSample(angle, distance);
+        }
+    }
+
+    private boolean localICP() {
+        return reference != null && !serverPose;
+    }
+
+    // ICP gets its own thread so a slow match never holds up receiving or drawing, it only works on the newest revolution
+    private void startICP() {
+        ICP icp = new ICP(ICP_TIMEOUT, new HashMap<>(Map.of(reference, new Transform())));
+        icp.setRelocalization();
+        Thread thread = new Thread(() -> {
+            Transform last = new Transform();
+            while (true) {
+                Revolution revolution;
+                try {
+                    revolution = assembler.awaitLatest(1_000_000_000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (revolution == null) {
+                    continue;
+                }
+                try {
+                    last = icp.doICP(revolution.getPoints(), last);
+                    pose = last;
+                } catch (RuntimeException e) { // No matching points, try again with the next one
+                    last = new Transform();
+                }
+            }
+        }, "ICP");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void draw(long now) {
+        if (lastPulse > 0) {
+            frameRate += (1e9 / (now - lastPulse) - frameRate) * 0.05;
+        }
+        lastPulse = now;
+
+        graphics.setFill(Color.WHITE);
+        graphics.fillRect(0, 0, SIZE, SIZE);
+
+        Transform pose = this.pose;
+        if (pose != null && reference != null) { // The reference is in the field's frame, the transform takes it into the lidar's
+            pose.apply(reference, placedReference);
+            graphics.setFill(Color.LIGHTGRAY);
+            placedReference.forEachPoint((x, y) -> graphics.fillRect(toScreen(x) - 2, toScreen(y) - 2, 4, 4));
+        }
+
+        // Newest first, so the fill only changes when the age gets into the next level
+        long since = now - persistence;
+        int[] level = {-1};
+        drawn = points.forEachSince(since, (x, y, time) -> {
+            int age = (int) Math.min(AGE_LEVELS - 1, (now - time) * AGE_LEVELS / Math.max(1, persistence));
+            if (age != level[0]) {
+                level[0] = age;
+                graphics.setFill(Color.gray(0, 1 - (double) age / AGE_LEVELS));
+            }
+            graphics.fillRect(toScreen(x) - 1.5, toScreen(y) - 1.5, 3, 3);
+        });
+
+        drawOverlay(pose);
     }
 
-    private void drawShape(float[] polar) {
-        float[] cartesian = getCartesian(polar); // TODO: make more efficient
+    private void drawOverlay(Transform pose) {
+        // The lidar is always in the middle, facing right
+        graphics.setStroke(Color.RED);
+        graphics.setLineWidth(2);
+        graphics.strokeOval(SIZE / 2.0 - 8, SIZE / 2.0 - 8, 16, 16);
+        graphics.strokeLine(SIZE / 2.0, SIZE / 2.0, SIZE / 2.0 + 20, SIZE / 2.0);
 
-        root.getChildren().add(new Circle(cartesian[0] / 5 + 750, cartesian[1] / 5 + 750, 10));
-        circleNumber += 1;
-        if (circleNumber > maxCircles) { // Deletes the oldest point after a certain amount of points are there
-            root.getChildren().remove(0);
+        graphics.setFill(Color.BLACK);
+        graphics.fillText(String.format("%.0f fps, %d points", frameRate, drawn), 10, 20);
+        if (pose != null) {
+            Transform robot = pose.inverse(); // Where the lidar is on the field
+            graphics.fillText(String.format("Pose (%.0f, %.0f) %.1f deg", robot.tx, robot.ty, Math.toDegrees(robot.theta)), 10, 40);
         }
     }
 
-    // TODO: Maybe I should use points here, but I use float arrays everywhere else in this class so idk?
-    public float[] getCartesian(float[] polar) { // float array is {angle, distance}, cartesian is {x, y} TODO: make more efficient by not creating a new array every time
-        return new float[]{(float) (polar[1] * Math.cos(Math.toRadians(polar[0]))),
-                (float) (polar[1] * Math.sin(Math.toRadians(polar[0])))};
+    private static double toScreen(double mm) {
+        return mm * SCALE + SIZE / 2.0;
     }
 }
@@ -3,10 +3,15 @@ package com.palyrobotics;
 import com.esotericsoftware.kryonet.Client;
 import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
+import com.palyrobotics.net.LidarScan;
+import com.palyrobotics.net.Messages;
+import com.palyrobotics.net.SequenceTracker;
+import com.palyrobotics.net.Subscribe;
 import com.palyrobotics.sensors.Lidar;
 import com.palyrobotics.sensors.Sensor;
 import com.palyrobotics.util.Point;
-import com.palyrobotics.util.PointCloud;
+import com.palyrobotics.util.Revolution;
+import com.palyrobotics.util.RevolutionAssembler;
 
 import java.io.FileWriter;
 import java.io.IOException;
@@ -24,9 +29,9 @@ public class LidarScanner {
     private static Lidar lidar = new Lidar("cp210x", 5807);
 
 
-    private static PointCloud lastPointCloud = null;
-    private static PointCloud currentPointCloud = new PointCloud();
-    private static float lastAngle = 0;
+    // Filled from the Kryo thread, read from the stdin thread
+    private static RevolutionAssembler assembler = new RevolutionAssembler();
+    private static Revolution lastRevolution = null;
 
     static {
         mRunningSensors = List.of(lidar);
@@ -35,23 +40,34 @@ public class LidarScanner {
     public static void main(String[] args) throws IOException {
         mRunningSensors.forEach(Sensor::init);
 
-        Client client = new Client();
-        client.getKryo().register(float[].class);
+        Client client = new Client(Messages.WRITE_BUFFER_SIZE, Messages.OBJECT_BUFFER_SIZE);
+        Messages.register(client.getKryo());
+        SequenceTracker tracker = new SequenceTracker();
         client.addListener(new Listener() {
             @Override
             public void connected(Connection connection) {
                 System.out.println("Connected");
+                tracker.reset();
+                connection.sendTCP(new Subscribe(true)); // Servers running ICP only send scans to clients that ask
             }
 
             @Override
             public void received(Connection connection, Object object) {
-                if (object instanceof float[]) { // Java 14 when?
-                    addPoint(((float[]) object)[0], ((float[]) object)[1]);
+                if (object instanceof LidarScan) {
+                    var scan = (LidarScan) object;
+                    if (!tracker.accept(scan)) {
+                        return; // Came after a newer one over UDP, the assembler already moved past it
+                    }
+                    for (int i = 0; i < scan.size(); i++) {
+                        assembler.addSample(scan.getAngle(i), scan.getDistance(i), scan.getTime(i));
+                    }
+                } else if (object instanceof float[]) { // Java 14 when?
+                    assembler.addSample(((float[]) object)[0], ((float[]) object)[1]);
                 }
             }
         });
         new Thread(client).start();
-        client.connect(4000, "10.1.10.205", 5807);
+        client.connect(4000, "10.1.10.205", 5807, -1); // -1 is TCP only, use the server's --udp port to get scans over UDP
 
         Scanner in = new Scanner(System.in);
         while (true) {
@@ -66,21 +82,16 @@ public class LidarScanner {
                     e.printStackTrace();
                 }
 
-                var last = lastPointCloud; // Make sure that lastPointCloud is not changed
-                for (Point point : last) {
+                var latest = assembler.pollLatest(); // The assembler won't touch it until we poll again
+                if (latest != null) {
+                    lastRevolution = latest;
+                }
+                for (Point point : lastRevolution.getPoints()) {
                     assert out != null;
                     out.println(point);
                 }
+                out.close();
             }
         }
     }
-
-    public static void addPoint(float theta, float r) {
-        if (lastAngle > theta) {
-            lastPointCloud = currentPointCloud;
-            currentPointCloud = new PointCloud();
-        }
-        currentPointCloud.addPoint(Point.fromPolar(theta, r));
-        lastAngle = theta;
-    }
 }
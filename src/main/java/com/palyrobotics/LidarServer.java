@@ -1,22 +1,141 @@
 package com.palyrobotics;
 
+import com.palyrobotics.metrics.MetricRegistry;
+import com.palyrobotics.metrics.MetricsHttpServer;
+import com.palyrobotics.metrics.MetricsMBean;
+import com.palyrobotics.net.Broadcaster;
 import com.palyrobotics.sensors.Lidar;
+import com.palyrobotics.sensors.LidarPacketDecoder;
+import com.palyrobotics.sensors.LidarRecorder;
+import com.palyrobotics.sensors.LidarReplay;
+import com.palyrobotics.sensors.PoseEstimator;
 import com.palyrobotics.sensors.Sensor;
+import com.palyrobotics.sensors.SerialReactor;
+import com.palyrobotics.util.Deskew;
+import com.palyrobotics.util.DistanceField;
+import com.palyrobotics.util.GridMapper;
+import com.palyrobotics.util.ICP;
+import com.palyrobotics.util.OccupancyGrid;
+import com.palyrobotics.util.ScanFilter;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
 
+import javax.management.JMException;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 
 // A driver class for the rest mainly used for testing at the moment
 public class LidarServer {
 
     private static List<Sensor> mRunningSensors;
-    private static Lidar lidar = new Lidar("cp210x", 5807);
+    private static Lidar lidar;
+    private static final long ICP_TIMEOUT = 20_000_000; // ns, a Pi is slower than a laptop
 
-    static {
+    private static PoseEstimator estimator;
+    private static OccupancyGrid grid; // Written by the localization worker, read once the estimator stopped
+
+    public static void main(String[] args) throws IOException, JMException {
+        ArgumentParser parser = ArgumentParsers.newFor("LidarServer").build()
+                .description("Serves lidar data from the serial port or from a recording");
+        parser.addArgument("--record").metavar("FILE").help("record every lidar packet to FILE");
+        parser.addArgument("--replay").metavar("FILE").help("serve a recording instead of the lidar");
+        parser.addArgument("--speed").type(Double.class).setDefault(1.0).help("replay speed, 0 is as fast as possible");
+        parser.addArgument("--udp").type(Integer.class).setDefault(0).metavar("PORT")
+                .help("send scans over UDP on PORT to clients that connect with it, 0 is TCP only");
+        parser.addArgument("--slow-clients").type(Broadcaster.Policy.class).setDefault(Broadcaster.Policy.DROP_OLDEST)
+                .help("what happens to a client whose queue is full");
+        parser.addArgument("--pose").metavar("REFERENCE")
+                .help("run ICP against REFERENCE here and send every client its pose, scans only go to clients that subscribe");
+        parser.addArgument("--pyramid").action(Arguments.storeTrue()).help("with --pose, run ICP coarse to fine");
+        parser.addArgument("--deskew").action(Arguments.storeTrue()).help("with --pose, make up for the lidar moving during a revolution");
+        parser.addArgument("--relocalize").type(Double.class).setDefault(ICP.DEFAULT_RELOCALIZATION_ERROR).metavar("MM")
+                .help("with --pose, search the whole reference when ICP's error is over MM, 0 is off");
+        parser.addArgument("--mapping").action(Arguments.storeTrue()).help("with --pose, build an occupancy grid from the converged revolutions");
+        parser.addArgument("--snapshot").type(Double.class).setDefault(0.0)
+                .help("match against a snapshot of the grid every this many seconds instead of the reference, 0 keeps the reference");
+        parser.addArgument("--tiles").type(Integer.class).setDefault(OccupancyGrid.DEFAULT_MAX_TILES).help("grid tiles kept in memory");
+        parser.addArgument("--spill").help("directory for tiles that don't fit in memory, they are forgotten without one");
+        parser.addArgument("--save-map").help("write the grid's last snapshot here as angle,distance lines when stopping");
+        parser.addArgument("--metrics").type(Integer.class).setDefault(0).metavar("PORT")
+                .help("serve metrics over HTTP at http://localhost:PORT/metrics, 0 is JMX only");
+        Namespace options;
+        try {
+            options = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            return;
+        }
+
+        lidar = new Lidar("cp210x", 5807, options.getInt("udp"), Lidar.Batching.PACKET);
+        lidar.getBroadcaster().setPolicy(options.get("slow_clients"));
         mRunningSensors = List.of(lidar);
-    }
 
-    public static void main(String[] args) {
+        if (options.getString("pose") != null) {
+            ICP icp = new ICP(ICP_TIMEOUT, Double.POSITIVE_INFINITY, DistanceField.forReference(options.getString("pose")));
+            icp.setMetrics(MetricRegistry.getShared(), "icp");
+            if (options.getBoolean("pyramid")) {
+                icp.setPyramid();
+            }
+            if (options.getDouble("relocalize") > 0) {
+                icp.setRelocalization(options.getDouble("relocalize"));
+            }
+            lidar.getBroadcaster().setRawByDefault(false);
+            estimator = new PoseEstimator(lidar, icp, new ScanFilter(), options.getBoolean("deskew") ? new Deskew() : null);
+            if (options.getBoolean("mapping")) {
+                grid = new OccupancyGrid(OccupancyGrid.DEFAULT_RESOLUTION, OccupancyGrid.DEFAULT_MAX_RANGE, options.getInt("tiles"),
+                        options.getString("spill") != null ? Path.of(options.getString("spill")) : null);
+                estimator.addPoseListener(new GridMapper(grid, icp, (long) (options.getDouble("snapshot") * 1e9)));
+            }
+            estimator.start();
+        }
+
+        MetricsMBean.register(MetricRegistry.getShared(), MetricsMBean.DEFAULT_NAME);
+        if (options.getInt("metrics") > 0) {
+            new MetricsHttpServer(MetricRegistry.getShared(), options.getInt("metrics"));
+        }
+
+        if (options.getString("replay") != null) {
+            try (var replay = new LidarReplay(options.getString("replay"))) {
+                long packets = replay.play(new LidarPacketDecoder(), lidar::handlePacket, options.getDouble("speed"));
+                System.out.println("Replayed " + packets + " packets");
+            }
+            saveMap(options.getString("save_map"));
+            return;
+        }
+
+        LidarRecorder recorder = options.getString("record") != null ? new LidarRecorder(options.getString("record")) : null;
+        if (recorder != null) {
+            lidar.setRecorder(recorder);
+        }
         mRunningSensors.forEach(Sensor::init);
+        // One hook, shutdown hooks run concurrently and the decoder must stop writing before the recording is closed
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            SerialReactor.getShared().close(); // Stops the motor too
+            try {
+                if (recorder != null) {
+                    recorder.close();
+                }
+                saveMap(options.getString("save_map"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+    }
+
+    // Stops localization first, the grid is only safe to read once nothing inserts into it
+    private static void saveMap(String file) throws IOException {
+        if (grid == null) {
+            return;
+        }
+        estimator.stop();
+        System.out.printf("Grid: %d scans, %d tiles in memory, %d spilled, %d loaded, %d dropped%n", grid.getInsertedScans(),
+                grid.getTiles(), grid.getTilesSpilled(), grid.getTilesLoaded(), grid.getTilesDropped());
+        if (file != null) {
+            grid.snapshot().savePolarFile(file);
+        }
     }
 }
@@ -0,0 +1,43 @@
+package com.palyrobotics;
+
+import com.palyrobotics.util.DistanceField;
+import com.palyrobotics.util.PointCloud;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.IOException;
+
+/**
+ * Turns reference scans into distance fields ahead of time, so the robot maps one file at startup instead of parsing
+ * text and building an index. out.txt becomes out.field next to it
+ */
+public class ReferenceCompiler {
+
+    public static void main(String[] args) throws IOException {
+        ArgumentParser parser = ArgumentParsers.newFor("ReferenceCompiler").build()
+                .description("Compiles reference scans into distance fields for ICP");
+        parser.addArgument("references").nargs("+").help("reference scans as angle,distance lines");
+        parser.addArgument("--resolution").type(Double.class).setDefault(DistanceField.DEFAULT_RESOLUTION).help("mm per cell");
+        parser.addArgument("--margin").type(Double.class).setDefault(DistanceField.DEFAULT_MARGIN)
+                .help("mm of grid around the reference, scans outside it match against the edge");
+        Namespace options;
+        try {
+            options = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            return;
+        }
+
+        for (String file : options.<String>getList("references")) {
+            long start = System.nanoTime();
+            DistanceField field = DistanceField.build(PointCloud.fromPolarFile(file), options.getDouble("resolution"),
+                    options.getDouble("margin"));
+            String output = DistanceField.fileFor(file);
+            field.save(output);
+            System.out.printf("%s: %d points, %dx%d cells in %.2fs -> %s%n", file, field.getPoints().size(),
+                    field.getWidth(), field.getHeight(), (System.nanoTime() - start) / 1e9, output);
+        }
+    }
+}
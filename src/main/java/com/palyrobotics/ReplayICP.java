@@ -0,0 +1,130 @@
+package com.palyrobotics;
+
+import com.palyrobotics.sensors.LidarPacketDecoder;
+import com.palyrobotics.sensors.LidarReplay;
+import com.palyrobotics.util.Deskew;
+import com.palyrobotics.util.DistanceField;
+import com.palyrobotics.util.GridMapper;
+import com.palyrobotics.util.ICP;
+import com.palyrobotics.util.ICPResult;
+import com.palyrobotics.util.OccupancyGrid;
+import com.palyrobotics.util.PointCloud;
+import com.palyrobotics.util.Revolution;
+import com.palyrobotics.util.RevolutionAssembler;
+import com.palyrobotics.util.ScanFilter;
+import com.palyrobotics.util.Transform;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a lidar recording through the decoder, revolution assembly and ICP on this machine, as fast as possible by default,
+ * so field issues can be reproduced without the robot
+ */
+public class ReplayICP {
+
+    private static ICP icp;
+    private static Transform lastTransform = new Transform();
+    private static long revolutions, converged;
+
+    public static void main(String[] args) throws IOException {
+        ArgumentParser parser = ArgumentParsers.newFor("ReplayICP").build()
+                .description("Runs ICP on every revolution of a lidar recording");
+        parser.addArgument("recording").help("file written by LidarServer --record");
+        parser.addArgument("--reference").setDefault("out.txt").help("reference scan as angle,distance lines");
+        parser.addArgument("--field").action(Arguments.storeTrue())
+                .help("match against the reference's distance field, the one ReferenceCompiler made if it is there");
+        parser.addArgument("--speed").type(Double.class).setDefault(0.0).help("1 is real time, 0 is as fast as possible");
+        parser.addArgument("--timeout").type(Long.class).setDefault(10000000L).help("ICP timeout in nanoseconds");
+        parser.addArgument("--pyramid").action(Arguments.storeTrue()).help("align downsampled scans first, coarse to fine");
+        parser.addArgument("--relocalize").type(Double.class).setDefault(0.0)
+                .help("search the whole reference when ICP's error is over this many mm or nothing matched, 0 is off");
+        FilterOptions.addArguments(parser);
+        parser.addArgument("--mapping").action(Arguments.storeTrue()).help("build an occupancy grid from the converged revolutions");
+        parser.addArgument("--snapshot").type(Double.class).setDefault(0.0)
+                .help("match against a snapshot of the grid every this many seconds instead of the reference, 0 keeps the reference");
+        parser.addArgument("--tiles").type(Integer.class).setDefault(OccupancyGrid.DEFAULT_MAX_TILES).help("grid tiles kept in memory");
+        parser.addArgument("--spill").help("directory for tiles that don't fit in memory, they are forgotten without one");
+        parser.addArgument("--save-map").help("write the grid's last snapshot here as angle,distance lines");
+        parser.addArgument("--verbose").action(Arguments.storeTrue()).help("print every transform");
+        Namespace options;
+        try {
+            options = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            return;
+        }
+
+        if (options.getBoolean("field")) {
+            icp = new ICP(options.getLong("timeout"), Double.POSITIVE_INFINITY, DistanceField.forReference(options.getString("reference")));
+        } else {
+            PointCloud reference = PointCloud.fromPolarFile(options.getString("reference"));
+            icp = new ICP(options.getLong("timeout"), new HashMap<>(Map.of(reference, new Transform())));
+        }
+        if (options.getBoolean("pyramid")) {
+            icp.setPyramid();
+        }
+        if (options.getDouble("relocalize") > 0) {
+            icp.setRelocalization(options.getDouble("relocalize"));
+        }
+        boolean verbose = options.getBoolean("verbose");
+        OccupancyGrid grid = options.getBoolean("mapping")
+                ? new OccupancyGrid(OccupancyGrid.DEFAULT_RESOLUTION, OccupancyGrid.DEFAULT_MAX_RANGE, options.getInt("tiles"),
+                        options.getString("spill") != null ? Path.of(options.getString("spill")) : null)
+                : null;
+        GridMapper mapper = grid != null ? new GridMapper(grid, icp, (long) (options.getDouble("snapshot") * 1e9)) : null;
+
+        Deskew deskew = FilterOptions.deskew(options);
+        ScanFilter filter = FilterOptions.filter(options, deskew);
+
+        // Producer and consumer are both this thread, so every revolution can be taken in order
+        RevolutionAssembler assembler = new RevolutionAssembler(filter);
+        LidarPacketDecoder decoder = new LidarPacketDecoder();
+        long start = System.nanoTime();
+        long packets;
+        try (var replay = new LidarReplay(options.getString("recording"))) {
+            packets = replay.play(decoder, packet -> {
+                for (int i = 0; i < packet.getSampleQuantity(); i++) {
+                    assembler.addSample(packet.getAngle(i), packet.getDistance(i), packet.getTime(i));
+                }
+                Revolution revolution;
+                while ((revolution = assembler.pollNext()) != null) {
+                    ICPResult result = icp.match(revolution.getPoints(), lastTransform);
+                    lastTransform = result.transform;
+                    if (deskew != null) {
+                        if (result.converged) {
+                            deskew.update(result.transform, revolution.getEndTime());
+                        } else {
+                            deskew.reset();
+                        }
+                    }
+                    if (mapper != null) {
+                        mapper.onPose(revolution, result);
+                    }
+                    revolutions++;
+                    if (result.converged) converged++;
+                    if (verbose) System.out.println(revolution.getId() + ": " + result);
+                }
+            }, options.getDouble("speed"));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d packets (%d bad check codes), %d revolutions (%d converged) in %.2fs, %.0f revolutions/s%n",
+                packets, decoder.getChecksumFailures(), revolutions, converged, seconds, revolutions / seconds);
+        System.out.println("Last transform " + lastTransform);
+        if (grid != null) {
+            System.out.printf("Grid: %d scans, %d tiles in memory, %d spilled, %d loaded, %d dropped%n", grid.getInsertedScans(),
+                    grid.getTiles(), grid.getTilesSpilled(), grid.getTilesLoaded(), grid.getTilesDropped());
+            if (options.getString("save_map") != null) {
+                grid.snapshot().savePolarFile(options.getString("save_map"));
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.palyrobotics;
+
+import com.palyrobotics.metrics.MetricRegistry;
+import com.palyrobotics.metrics.MetricsHttpServer;
+import com.palyrobotics.metrics.MetricsMBean;
+import com.palyrobotics.net.Broadcaster;
+import com.palyrobotics.sensors.Lidar;
+import com.palyrobotics.sensors.RangeFilter;
+import com.palyrobotics.sensors.SerialReactor;
+import com.palyrobotics.sensors.SerialSensor;
+import com.palyrobotics.sensors.TimeOfFlightSensor;
+import com.palyrobotics.simulation.FrameGenerator;
+import com.palyrobotics.simulation.SimulatedLidar;
+import com.palyrobotics.simulation.SimulatedSource;
+import com.palyrobotics.simulation.SimulatedTimeOfFlight;
+import com.palyrobotics.simulation.Trajectory;
+import com.palyrobotics.util.Deskew;
+import com.palyrobotics.util.DistanceField;
+import com.palyrobotics.util.GridMapper;
+import com.palyrobotics.util.ICP;
+import com.palyrobotics.util.LocalizationWorker;
+import com.palyrobotics.util.OccupancyGrid;
+import com.palyrobotics.util.PointCloud;
+import com.palyrobotics.util.RevolutionAssembler;
+import com.palyrobotics.util.ScanFilter;
+import com.palyrobotics.util.SegmentMap;
+import com.palyrobotics.util.Transform;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves a simulated lidar and time of flight sensors through the same sensor classes as the real ones, so the server
+ * and ICP can be load tested without hardware. With --icp the lidar's packets also go through revolution assembly and
+ * ICP on this machine, and the transforms are compared with the trajectory
+ */
+public class SimulationServer {
+
+    // Written by the localization worker, read once it stopped
+    private static long revolutions, converged;
+    private static double errorSum;
+
+    public static void main(String[] args) throws IOException, InterruptedException, JMException {
+        ArgumentParser parser = ArgumentParsers.newFor("SimulationServer").build()
+                .description("Serves simulated lidar and time of flight data");
+        parser.addArgument("--map").setDefault("out.txt").help("reference scan as angle,distance lines, walls are fitted to it");
+        parser.addArgument("--segments").help("walls as x1,y1,x2,y2 lines, used instead of --map");
+        parser.addArgument("--trajectory").help("waypoints as seconds,x,y,heading lines, looped, stays at the origin without one");
+        parser.addArgument("--rate").type(Double.class).setDefault(1.0).help("how many times the real devices' rates to run at");
+        parser.addArgument("--noise").type(Double.class).setDefault(10.0).help("standard deviation of distances in mm");
+        parser.addArgument("--dropout").type(Double.class).setDefault(0.01).help("chance of a sample having no distance");
+        parser.addArgument("--corruption").type(Double.class).setDefault(0.0).help("chance of a bit flip in every byte");
+        parser.addArgument("--loss").type(Double.class).setDefault(0.0).help("chance of every byte getting lost");
+        parser.addArgument("--tof").type(Integer.class).setDefault(0).help("amount of time of flight sensors");
+        parser.addArgument("--tof-rate").type(Double.class).setDefault(TimeOfFlightSensor.DEFAULT_OUTPUT_RATE)
+                .help("time of flight batches per second, 0 sends every reading");
+        parser.addArgument("--tof-median").type(Integer.class).setDefault(1).help("time of flight median window, 1 is off");
+        parser.addArgument("--tof-smoothing").type(Double.class).setDefault(1.0).help("weight of the newest time of flight reading, 1 is off");
+        parser.addArgument("--port").type(Integer.class).setDefault(5807).help("lidar tcp port, time of flight sensors use the next ones");
+        parser.addArgument("--udp").type(Integer.class).setDefault(0).help("lidar udp port for scans, 0 is TCP only");
+        parser.addArgument("--slow-clients").type(Broadcaster.Policy.class).setDefault(Broadcaster.Policy.DROP_OLDEST)
+                .help("what happens to a client whose queue is full");
+        parser.addArgument("--metrics").type(Integer.class).setDefault(0).help("http port for metrics on localhost, 0 is JMX only");
+        parser.addArgument("--threads").type(Integer.class).setDefault(SerialReactor.DEFAULT_THREADS).help("reactor worker threads");
+        parser.addArgument("--duration").type(Double.class).setDefault(0.0).help("seconds to run for, 0 is forever");
+        parser.addArgument("--icp").action(Arguments.storeTrue()).help("run ICP on the lidar's revolutions and report the error");
+        parser.addArgument("--relocalize").type(Double.class).setDefault(0.0)
+                .help("search the whole reference when ICP's error is over this many mm or nothing matched, 0 is off");
+        FilterOptions.addArguments(parser);
+        parser.addArgument("--field").action(Arguments.storeTrue())
+                .help("match against the map's distance field, the one ReferenceCompiler made if it is there");
+        parser.addArgument("--pyramid").action(Arguments.storeTrue()).help("run ICP coarse to fine");
+        parser.addArgument("--budget").type(Double.class).setDefault(LocalizationWorker.DEFAULT_BUDGET_FRACTION)
+                .help("fraction of the revolution period ICP has for a revolution, counted from when it was completed");
+        parser.addArgument("--mapping").action(Arguments.storeTrue()).help("build an occupancy grid from the converged revolutions");
+        parser.addArgument("--snapshot").type(Double.class).setDefault(0.0)
+                .help("match against a snapshot of the grid every this many seconds instead of the map, 0 keeps the map");
+        parser.addArgument("--tiles").type(Integer.class).setDefault(OccupancyGrid.DEFAULT_MAX_TILES).help("grid tiles kept in memory");
+        parser.addArgument("--spill").help("directory for tiles that don't fit in memory, they are forgotten without one");
+        parser.addArgument("--save-map").help("write the grid's last snapshot here as angle,distance lines");
+        Namespace options;
+        try {
+            options = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            return;
+        }
+
+        PointCloud reference = PointCloud.fromPolarFile(options.getString("map"));
+        SegmentMap map = options.getString("segments") != null ? SegmentMap.load(options.getString("segments")) : SegmentMap.fit(reference);
+        Trajectory trajectory = options.getString("trajectory") != null
+                ? Trajectory.load(options.getString("trajectory"), true) : new Trajectory(new Transform());
+        double rate = options.getDouble("rate");
+        int port = options.getInt("port");
+
+        SerialReactor reactor = new SerialReactor(options.getInt("threads"));
+        List<SerialSensor> sensors = new ArrayList<>();
+        List<SimulatedSource> sources = new ArrayList<>();
+
+        SimulatedLidar simulatedLidar = new SimulatedLidar(map, trajectory, SimulatedLidar.DEFAULT_SAMPLES_PER_REVOLUTION,
+                SimulatedLidar.DEFAULT_REVOLUTIONS_PER_SECOND * rate, SimulatedLidar.DEFAULT_SAMPLES_PER_PACKET, 1);
+        simulatedLidar.setNoise(options.getDouble("noise"));
+        simulatedLidar.setDropoutRate(options.getDouble("dropout"));
+        SimulatedSource lidarSource = source("lidar", simulatedLidar, options, sources);
+        Lidar lidar = new Lidar(lidarSource, port, options.getInt("udp"), Lidar.Batching.PACKET, reactor);
+        lidar.getBroadcaster().setPolicy(options.get("slow_clients"));
+        sensors.add(lidar);
+
+        for (int i = 0; i < options.getInt("tof"); i++) {
+            double angle = 2 * Math.PI * i / options.getInt("tof"); // Spread around the robot
+            SimulatedTimeOfFlight tof = new SimulatedTimeOfFlight(map, trajectory, 200 * Math.cos(angle), 200 * Math.sin(angle),
+                    angle, SimulatedTimeOfFlight.DEFAULT_FRAMES_PER_SECOND * rate, 2 + i);
+            tof.setNoise(options.getDouble("noise"));
+            tof.setDropoutRate(options.getDouble("dropout"));
+            TimeOfFlightSensor sensor = new TimeOfFlightSensor(source("tof" + i, tof, options, sources), port + 1 + i, reactor);
+            sensor.setFilter(new RangeFilter(options.getInt("tof_median"), options.getDouble("tof_smoothing")));
+            sensor.setOutputRate(options.getDouble("tof_rate"));
+            sensors.add(sensor);
+        }
+
+        Deskew deskew = FilterOptions.deskew(options);
+        ScanFilter filter = FilterOptions.filter(options, deskew);
+        RevolutionAssembler assembler = new RevolutionAssembler(filter);
+        if (options.getBoolean("icp")) {
+            lidar.addPacketListener(packet -> {
+                for (int i = 0; i < packet.getSampleQuantity(); i++) {
+                    assembler.addSample(packet.getAngle(i), packet.getDistance(i), packet.getTime(i));
+                }
+            });
+        }
+
+        MetricsMBean.register(MetricRegistry.getShared(), MetricsMBean.DEFAULT_NAME);
+        MetricsHttpServer metricsServer = options.getInt("metrics") > 0
+                ? new MetricsHttpServer(MetricRegistry.getShared(), options.getInt("metrics")) : null;
+
+        sensors.forEach(SerialSensor::init);
+        Runtime.getRuntime().addShutdownHook(new Thread(reactor::close));
+
+        double duration = options.getDouble("duration");
+        long start = System.nanoTime();
+        if (options.getBoolean("icp")) {
+            ICP icp = options.getBoolean("field")
+                    ? new ICP(10000000, Double.POSITIVE_INFINITY, DistanceField.forReference(options.getString("map")))
+                    : new ICP(10000000, new HashMap<>(Map.of(reference, new Transform())));
+            icp.setMetrics(MetricRegistry.getShared(), "icp");
+            if (options.getBoolean("pyramid")) {
+                icp.setPyramid();
+            }
+            if (options.getDouble("relocalize") > 0) {
+                icp.setRelocalization(options.getDouble("relocalize"));
+            }
+            OccupancyGrid grid = options.getBoolean("mapping")
+                    ? new OccupancyGrid(OccupancyGrid.DEFAULT_RESOLUTION, OccupancyGrid.DEFAULT_MAX_RANGE, options.getInt("tiles"),
+                            options.getString("spill") != null ? Path.of(options.getString("spill")) : null)
+                    : null;
+            GridMapper mapper = grid != null ? new GridMapper(grid, icp, (long) (options.getDouble("snapshot") * 1e9)) : null;
+            LocalizationWorker worker = new LocalizationWorker(assembler, icp, deskew, (revolution, result) -> {
+                if (mapper != null) {
+                    mapper.onPose(revolution, result);
+                }
+                // Where the robot was at the last sample, the simulation time runs with System.nanoTime()
+                Transform truth = trajectory.at(lidarSource.getTime() - (System.nanoTime() - revolution.getEndTime()) / 1e9);
+                errorSum += Math.hypot(result.transform.tx - truth.tx, result.transform.ty - truth.ty);
+                revolutions++;
+                if (result.converged) converged++;
+            });
+            worker.setBudgetFraction(options.getDouble("budget"));
+            worker.setMetrics(MetricRegistry.getShared(), "localization");
+            worker.start();
+            Thread.sleep(duration > 0 ? (long) (duration * 1000) : Long.MAX_VALUE);
+            worker.stop();
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d revolutions in %.1fs (%d converged, %d dropped, %d skipped), mean position error %.1fmm%n",
+                    revolutions, seconds, converged, assembler.getDroppedRevolutions(), assembler.getSkippedRevolutions(),
+                    errorSum / Math.max(1, revolutions));
+            System.out.printf("Localization: %.1fms revolutions, %d stale, %d deadline misses, %d failures%n",
+                    worker.getPeriod() / 1e6, worker.getStale(), worker.getDeadlineMisses(), worker.getFailures());
+            System.out.printf("Filter: %d samples out of range, %d merged, %d outliers%n",
+                    filter.getOutOfRange(), filter.getMerged(), filter.getOutliers());
+            if (grid != null) {
+                System.out.printf("Grid: %d scans, %d tiles in memory, %d spilled, %d loaded, %d dropped%n", grid.getInsertedScans(),
+                        grid.getTiles(), grid.getTilesSpilled(), grid.getTilesLoaded(), grid.getTilesDropped());
+                if (options.getString("save_map") != null) {
+                    grid.snapshot().savePolarFile(options.getString("save_map"));
+                }
+            }
+        } else if (duration > 0) {
+            Thread.sleep((long) (duration * 1000));
+        } else {
+            return; // The sensors keep serving until the process is stopped
+        }
+
+        lidar.getBroadcaster().getClients().forEach(client -> System.out.println("Client " + client));
+        reactor.close();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        for (SimulatedSource source : sources) {
+            System.out.printf("%s: %.1fs simulated, %d bytes corrupted, %d lost, %d overflowed%n", source.getName(),
+                    source.getTime(), source.getCorruptedBytes(), source.getLostBytes(), source.getOverflowedBytes());
+        }
+        for (SerialSensor sensor : sensors) {
+            System.out.println(sensor.getName() + ": " + sensor.getDroppedBytes() + " bytes dropped by the reactor");
+            if (sensor instanceof TimeOfFlightSensor) {
+                TimeOfFlightSensor tof = (TimeOfFlightSensor) sensor;
+                System.out.printf("    %d frames, %d bad checksums, %d rejected, last %dcm%n", tof.getFrames(),
+                        tof.getChecksumFailures(), tof.getRejected(), tof.getDistance());
+            }
+        }
+        System.out.println("Lidar: " + lidar.getDecoder().getPackets() + " packets, " + lidar.getDecoder().getChecksumFailures() + " bad check codes");
+    }
+
+    private static SimulatedSource source(String name, FrameGenerator generator, Namespace options,
+                                          List<SimulatedSource> sources) {
+        SimulatedSource source = new SimulatedSource(name, generator, sources.size());
+        source.setCorruptionRate(options.getDouble("corruption"));
+        source.setLossRate(options.getDouble("loss"));
+        sources.add(source);
+        return source;
+    }
+}
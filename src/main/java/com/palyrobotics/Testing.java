@@ -2,21 +2,25 @@ package com.palyrobotics;
 
 import com.esotericsoftware.kryonet.Connection;
 import com.esotericsoftware.kryonet.Listener;
+import com.palyrobotics.net.LidarScan;
+import com.palyrobotics.net.Messages;
+import com.palyrobotics.net.SequenceTracker;
+import com.palyrobotics.net.Subscribe;
 import com.palyrobotics.sensors.Lidar;
 import com.palyrobotics.sensors.Sensor;
 import com.palyrobotics.sensors.TimeOfFlightSensor;
 import com.esotericsoftware.kryonet.Client;
+import com.palyrobotics.util.Deskew;
+import com.palyrobotics.util.DistanceField;
 import com.palyrobotics.util.ICP;
-import com.palyrobotics.util.Point;
-import com.palyrobotics.util.PointCloud;
-import com.palyrobotics.util.Transform;
+import com.palyrobotics.util.LocalizationWorker;
+import com.palyrobotics.util.RevolutionAssembler;
+import com.palyrobotics.util.ScanFilter;
 
 import java.io.*;
 import java.lang.ref.Reference;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static java.util.Map.of;
 
@@ -27,66 +31,69 @@ public class Testing {
     private static Lidar timeOfFlight = new Lidar("cp210x", 5807);
 
     // Rushed
-    public static PointCloud pc = new PointCloud();
+    private static Deskew deskew = new Deskew(); // The worker gives it the velocity, the Kryo thread uses it
+    private static RevolutionAssembler assembler = new RevolutionAssembler(filter()); // Kryo thread in, worker out
     private static ICP icp;
-    private static Transform lastTransform = new Transform();
-    private static float lastAngle = 0;
-    private static long timeout = 10000000; // 10ms ik
+    private static long timeout = 10000000; // 10ms ik, the worker gives it less when the revolution would be late
 
     static {
         mRunningSensors = List.of(timeOfFlight);
     }
 
+    private static ScanFilter filter() {
+        ScanFilter filter = new ScanFilter();
+        filter.setDeskew(deskew);
+        return filter;
+    }
+
     public static void main(String[] args) throws InterruptedException, IOException {
         mRunningSensors.forEach(Sensor::init);
 
 //        PrintWriter fout = new PrintWriter(new FileWriter("out.txt"));
 
         // Very rushed way to test out ICP
-        Client client = new Client();
-        client.getKryo().register(float[].class);
+        Client client = new Client(Messages.WRITE_BUFFER_SIZE, Messages.OBJECT_BUFFER_SIZE);
+        Messages.register(client.getKryo());
+        SequenceTracker tracker = new SequenceTracker();
         client.addListener(new Listener() {
             @Override
             public void connected(Connection connection) {
                 System.out.println("Connected");
+                tracker.reset();
+                connection.sendTCP(new Subscribe(true)); // Servers running ICP only send scans to clients that ask
             }
 
             @Override
             public void received(Connection connection, Object object) {
-                if (object instanceof float[]) { // Java 14 when?
-                    addPoint(((float[]) object)[0], ((float[]) object)[1]);
+                if (object instanceof LidarScan) {
+                    var scan = (LidarScan) object;
+                    if (!tracker.accept(scan)) {
+                        return; // Came after a newer one over UDP, the assembler already moved past it
+                    }
+                    for (int i = 0; i < scan.size(); i++) {
+                        assembler.addSample(scan.getAngle(i), scan.getDistance(i), scan.getTime(i));
+                    }
+                } else if (object instanceof float[]) { // Java 14 when?
+                    assembler.addSample(((float[]) object)[0], ((float[]) object)[1]);
 //                    fout.printf("%f,%f%n", ((float[]) object)[0], ((float[]) object)[1]);
                 }
             }
         });
         new Thread(client).start();
 
-        BufferedReader bf = new BufferedReader(new FileReader("out.txt"));
-        PointCloud reference = new PointCloud();
-        while (true) {
-            String line = bf.readLine();
+        // Compile it with ReferenceCompiler first so this is one mapped file instead of parsing text and building a grid
+        icp = new ICP(timeout, Double.POSITIVE_INFINITY, DistanceField.forReference("out.txt"));
+        icp.setRelocalization(); // Finds the robot again when it gets lost or bumped
 
-            if (line == null) {
-                break;
-            }
+        client.connect(4000, "127.0.0.1", 5807, -1); // -1 is TCP only, use the server's --udp port to get scans over UDP
 
-            var split = line.split(",");
-            reference.addPoint(Point.fromPolar(new float[]{Float.parseFloat(split[0]),
-                                                            Float.parseFloat(split[1])}));
-        }
-        icp = new ICP(timeout, new HashMap<>(Map.of(reference, new Transform())));
-
-        client.connect(4000, "127.0.0.1", 5807);
-    }
-
-    // very rushed, TODO: un-rush this
-    public static void addPoint(float theta, float r) {
-        if (lastAngle > theta) {
-            lastTransform = icp.doICP(pc, lastTransform);
-            System.out.println(lastTransform);
-            pc = new PointCloud();
+        // ICP runs on the worker instead of in the Kryo callback so receiving never waits for it, older revolutions are skipped
+        LocalizationWorker worker = new LocalizationWorker(assembler, icp, deskew, (revolution, result) -> System.out.println(result.transform));
+        worker.start();
+        while (true) {
+            Thread.sleep(5000);
+            System.out.printf("%d poses, %d stale, %d late, %.0fms revolutions%n", worker.getPoses(), worker.getStale(),
+                    worker.getDeadlineMisses(), worker.getPeriod() / 1e6);
         }
-        pc.addPoint(Point.fromPolar(theta, r));
-        lastAngle = theta;
     }
 }
@@ -0,0 +1,41 @@
+package com.palyrobotics.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up. Adding is a LongAdder, so threads don't fight over it and nothing gets allocated.
+ * The registry works out the rate once a second
+ */
+public class Counter {
+
+    private final LongAdder count = new LongAdder();
+    private long lastCount; // Only touched by the registry's rate thread
+    private long lastTick = -1;
+    private volatile double rate;
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    // Per second, over the last second
+    public double getRate() {
+        return rate;
+    }
+
+    void tick(long now) {
+        long current = count.sum();
+        if (lastTick >= 0 && now > lastTick) {
+            rate = (current - lastCount) * 1e9 / (now - lastTick);
+        }
+        lastCount = current;
+        lastTick = now;
+    }
+}
@@ -0,0 +1,98 @@
+package com.palyrobotics.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values into buckets that double in size every 8 buckets, so every value is known to within about 6% of itself
+ * whether it is 20us or 2s. Recording is a few atomic adds on fixed arrays, nothing is allocated.
+ * Values are whole numbers of the unit, a unit of 0.1 keeps a tenth of a mm for example
+ */
+public class Histogram {
+
+    private static final int LINEAR = 16; // Values under this get their own bucket
+    private static final int SUB_BUCKET_BITS = 3; // 8 buckets per power of two
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    private final double unit;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram() {
+        this(1);
+    }
+
+    public Histogram(double unit) {
+        this.unit = unit;
+    }
+
+    public void record(double value) {
+        record(Math.round(value / unit));
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // At least 4
+        int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    // The middle of what the bucket holds
+    static long value(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + subBucket) * width + width / 2;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMean() {
+        long count = this.count.get();
+        return count == 0 ? 0 : sum.get() * unit / count;
+    }
+
+    public double getMax() {
+        return max.get() * unit;
+    }
+
+    // quantile from 0 to 1, 0.99 is the 99th percentile
+    public double getQuantile(double quantile) {
+        long count = this.count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(value(i), max.get()) * unit;
+            }
+        }
+        return getMax();
+    }
+}
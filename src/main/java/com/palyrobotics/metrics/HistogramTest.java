@@ -0,0 +1,59 @@
+package com.palyrobotics.metrics;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void quantilesAreClose() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(50000.5, histogram.getMean(), 1e-9);
+        assertEquals(50000, histogram.getQuantile(0.5), 50000 * 0.07);
+        assertEquals(99000, histogram.getQuantile(0.99), 99000 * 0.07);
+        assertEquals(100000, histogram.getMax(), 0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram(0.1);
+        histogram.record(0.3);
+        histogram.record(0.3);
+        histogram.record(1.2);
+        assertEquals(0.3, histogram.getQuantile(0.5), 1e-9);
+        assertEquals(1.2, histogram.getQuantile(1), 1e-9);
+        assertEquals(0.6, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        Histogram histogram = new Histogram();
+        Counter counter = new Counter();
+        for (int i = 0; i < 100000; i++) { // Let the JIT compile everything first
+            histogram.record(i * 31L);
+            counter.increment();
+        }
+
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        long overhead = threads.getThreadAllocatedBytes(thread) - before; // What asking costs by itself
+
+        int records = 10000;
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < records; i++) {
+            histogram.record(i * 1000L);
+            counter.increment();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+        assertEquals("bytes allocated per record", 0, allocated / records);
+    }
+}
@@ -0,0 +1,98 @@
+package com.palyrobotics.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Every counter, gauge and histogram by name. Names are dotted, starting with what they are about, like lidar.5807.packets.
+ * Looking a metric up is for setup, the hot paths keep the Counter or Histogram they got back and only record into it.
+ * Gauges are only read when someone looks, so they cost nothing until then
+ */
+public class MetricRegistry {
+
+    private static MetricRegistry shared;
+
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService rates;
+
+    public MetricRegistry() {
+        rates = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MetricRates");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rates.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            counters.values().forEach(counter -> counter.tick(now));
+        }, 0, 1, TimeUnit.SECONDS);
+    }
+
+    // The registry everything records into unless it is given another one, created the first time it is asked for
+    public static synchronized MetricRegistry getShared() {
+        if (shared == null) {
+            shared = new MetricRegistry();
+        }
+        return shared;
+    }
+
+    // The same counter every time for the same name
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return histogram(name, 1);
+    }
+
+    public Histogram histogram(String name, double unit) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(unit));
+    }
+
+    // Replaces any gauge with the same name
+    public void gauge(String name, DoubleSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    // Removes every metric whose name starts with the prefix, for things that go away like clients
+    public void remove(String prefix) {
+        counters.keySet().removeIf(name -> name.startsWith(prefix));
+        histograms.keySet().removeIf(name -> name.startsWith(prefix));
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Every value right now, sorted by name. Counters show up as their count and name.rate, histograms as name.count,
+     * name.mean, name.p50, name.p90, name.p99 and name.max
+     */
+    public SortedMap<String, Double> snapshot() {
+        SortedMap<String, Double> values = new TreeMap<>();
+        counters.forEach((name, counter) -> {
+            values.put(name, (double) counter.get());
+            values.put(name + ".rate", counter.getRate());
+        });
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", (double) histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            values.put(name + ".p50", histogram.getQuantile(0.5));
+            values.put(name + ".p90", histogram.getQuantile(0.9));
+            values.put(name + ".p99", histogram.getQuantile(0.99));
+            values.put(name + ".max", histogram.getMax());
+        });
+        gauges.forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.getAsDouble());
+            } catch (RuntimeException e) { // One broken gauge shouldn't take the rest down
+                values.put(name, Double.NaN);
+            }
+        });
+        return values;
+    }
+}
@@ -0,0 +1,66 @@
+package com.palyrobotics.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serves a registry's snapshot as plain text, one "name value" line per metric, at /metrics.
+ * /metrics?lidar only shows names starting with lidar. Good enough for curl or watch on the robot, or from the driver
+ * station through an ssh tunnel, since it only listens on the loopback address unless it is given another one
+ */
+public class MetricsHttpServer implements Closeable {
+
+    private final HttpServer server;
+    private final MetricRegistry registry;
+
+    public MetricsHttpServer(MetricRegistry registry, int port) throws IOException {
+        this(registry, InetAddress.getLoopbackAddress(), port);
+    }
+
+    public MetricsHttpServer(MetricRegistry registry, InetAddress address, int port) throws IOException {
+        this.registry = registry;
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(null); // Requests are handled on the server's own thread, there won't be many
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String prefix = exchange.getRequestURI().getQuery();
+        StringBuilder body = new StringBuilder();
+        for (Map.Entry<String, Double> entry : registry.snapshot().entrySet()) {
+            if (prefix == null || entry.getKey().startsWith(prefix)) {
+                body.append(entry.getKey()).append(' ').append(format(entry.getValue())).append('\n');
+            }
+        }
+
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
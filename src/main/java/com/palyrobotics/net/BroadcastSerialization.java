@@ -0,0 +1,19 @@
+package com.palyrobotics.net;
+
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.KryoSerialization;
+
+import java.nio.ByteBuffer;
+
+// Kryo serialization that writes an EncodedMessage's bytes as they are, servers that use a Broadcaster need this
+public class BroadcastSerialization extends KryoSerialization {
+
+    @Override
+    public void write(Connection connection, ByteBuffer buffer, Object object) {
+        if (object instanceof EncodedMessage) {
+            buffer.put(((EncodedMessage) object).bytes);
+        } else {
+            super.write(connection, buffer, object);
+        }
+    }
+}
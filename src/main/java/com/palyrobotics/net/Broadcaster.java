@@ -0,0 +1,328 @@
+package com.palyrobotics.net;
+
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.KryoSerialization;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.kryonet.Server;
+import com.palyrobotics.metrics.Counter;
+import com.palyrobotics.metrics.MetricRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends every message to every client of a server while serializing it only once.
+ * <p>
+ * Each client has a bounded queue in front of kryonet's write buffer. Messages only move from the queue into the write
+ * buffer while the client has less than MAX_PENDING_BYTES waiting to go out, so a client on bad Wi-Fi fills up its own
+ * queue instead of making the sender wait or making everyone else's messages late. What happens once the queue is full
+ * is the slow client policy. The queues are drained by broadcast and whenever kryonet says a client is idle.
+ * <p>
+ * Raw sensor data only goes to clients that want it, which is everyone unless raw by default is turned off or the
+ * client sent a {@link Subscribe} saying otherwise. Nothing gets serialized when nobody wants it.
+ * <p>
+ * The server has to use {@link BroadcastSerialization}
+ */
+public class Broadcaster extends Listener {
+
+    public enum Policy {
+        DROP_OLDEST, // Throw out the oldest queued message
+        LATEST_REVOLUTION, // Throw out the scans from revolutions before the newest, messages outside a revolution stay
+        DISCONNECT // Close the connection, the client can reconnect when it can keep up
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    static final int MAX_PENDING_BYTES = Messages.WRITE_BUFFER_SIZE / 2;
+
+    private final Server server;
+    private final KryoSerialization encoder = new KryoSerialization(); // Same registrations as the server, so the same ids
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(Messages.OBJECT_BUFFER_SIZE);
+    private final Map<Integer, Client> clients = new ConcurrentHashMap<>();
+    private final Map<Integer, Boolean> subscriptions = new ConcurrentHashMap<>(); // Connection id to whether it wants raw data
+    private volatile boolean rawByDefault = true;
+    private volatile Policy policy;
+    private volatile int capacity;
+
+    // Not registered anywhere until setMetrics, so recording never has to check
+    private MetricRegistry metrics;
+    private String metricsPrefix;
+    private Counter messages = new Counter(), bytes = new Counter(), dropped = new Counter();
+    private Counter sendFailures = new Counter(), disconnects = new Counter();
+
+    public Broadcaster(Server server) {
+        this(server, Policy.DROP_OLDEST, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public Broadcaster(Server server, Policy policy, int capacity) {
+        this.server = server;
+        this.policy = policy;
+        this.capacity = capacity;
+        Messages.register(encoder.getKryo());
+        server.addListener(this);
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Whether clients that never sent a Subscribe get raw data
+    public void setRawByDefault(boolean rawByDefault) {
+        this.rawByDefault = rawByDefault;
+    }
+
+    /**
+     * Records into the registry under the prefix: messages, bytes (TCP and UDP), dropped, send_failures and
+     * disconnects, plus queued, pending_bytes, dropped and latency_ms for every client under prefix.client.id.
+     * Call it before any clients connect
+     */
+    public synchronized void setMetrics(MetricRegistry registry, String prefix) {
+        this.metrics = registry;
+        this.metricsPrefix = prefix;
+        messages = registry.counter(prefix + ".messages");
+        bytes = registry.counter(prefix + ".bytes");
+        dropped = registry.counter(prefix + ".dropped");
+        sendFailures = registry.counter(prefix + ".send_failures");
+        disconnects = registry.counter(prefix + ".disconnects");
+    }
+
+    // Raw sensor data, only for the clients that want it
+    public void broadcast(Object message, int revolution, boolean udp) {
+        broadcast(message, revolution, udp, true);
+    }
+
+    /**
+     * Serializes the message once and queues it for every client. Over UDP it goes straight out to the clients that
+     * connected with UDP, there is no backlog to manage there
+     *
+     * @param revolution the revolution the message is from, or -1
+     * @param raw whether it is raw sensor data, which only goes to the clients that want it
+     */
+    public synchronized void broadcast(Object message, int revolution, boolean udp, boolean raw) {
+        EncodedMessage encoded = null; // Only once someone wants it
+        for (Connection connection : server.getConnections()) {
+            if (raw && !subscriptions.getOrDefault(connection.getID(), rawByDefault)) {
+                continue;
+            }
+            if (encoded == null) {
+                encoded = encode(message, revolution);
+                messages.increment();
+            }
+            if (udp && connection.getRemoteAddressUDP() != null) {
+                int sent = connection.sendUDP(encoded);
+                if (sent > 0) {
+                    bytes.add(sent);
+                } else {
+                    sendFailures.increment();
+                }
+                continue;
+            }
+            if (!connection.isConnected()) {
+                continue; // Closed since the snapshot, adding it back would leak the client and its gauges
+            }
+            Client client = clients.computeIfAbsent(connection.getID(), id -> addClient(connection));
+            if (client.offer(encoded, policy, capacity)) {
+                client.flush();
+            } else {
+                System.err.println("Closing " + connection.getID() + ", it could not keep up");
+                disconnects.increment();
+                connection.close();
+            }
+        }
+    }
+
+    private Client addClient(Connection connection) {
+        Client client = new Client(connection, bytes, dropped, sendFailures);
+        if (metrics != null) {
+            String prefix = metricsPrefix + ".client." + connection.getID();
+            metrics.gauge(prefix + ".queued", client::getQueued);
+            metrics.gauge(prefix + ".pending_bytes", client::getPendingBytes);
+            metrics.gauge(prefix + ".dropped", client::getDropped);
+            metrics.gauge(prefix + ".latency_ms", () -> client.getMeanLatency() / 1e6);
+        }
+        return client;
+    }
+
+    private EncodedMessage encode(Object message, int revolution) {
+        encodeBuffer.clear();
+        encoder.write(null, encodeBuffer, message);
+        return new EncodedMessage(Arrays.copyOf(encodeBuffer.array(), encodeBuffer.position()), revolution, System.nanoTime());
+    }
+
+    @Override
+    public void received(Connection connection, Object object) {
+        if (object instanceof Subscribe) {
+            subscriptions.put(connection.getID(), ((Subscribe) object).raw);
+        }
+    }
+
+    @Override
+    public void idle(Connection connection) {
+        Client client = clients.get(connection.getID());
+        if (client != null) {
+            client.flush();
+        }
+    }
+
+    // Synchronized with broadcast, which could otherwise add the client back while it is being removed
+    @Override
+    public synchronized void disconnected(Connection connection) {
+        subscriptions.remove(connection.getID());
+        if (clients.remove(connection.getID()) != null && metrics != null) {
+            metrics.remove(metricsPrefix + ".client." + connection.getID() + ".");
+        }
+    }
+
+    public Collection<Client> getClients() {
+        return clients.values();
+    }
+
+    /**
+     * One client's queue and how it is doing. Latency is from when a message was broadcast to when it went into the
+     * client's write buffer, so it is how long the message waited because the client was slow
+     */
+    public static class Client {
+
+        private static final double LATENCY_SMOOTHING = 0.05;
+
+        private final Connection connection;
+        private final ArrayDeque<EncodedMessage> queue = new ArrayDeque<>();
+        private final Counter totalBytes, totalDropped, totalFailures; // Shared by all of the broadcaster's clients
+        private long sent, dropped;
+        private double meanLatency; // Exponentially smoothed, ns
+        private long maxLatency;
+
+        Client(Connection connection) {
+            this(connection, new Counter(), new Counter(), new Counter());
+        }
+
+        Client(Connection connection, Counter totalBytes, Counter totalDropped, Counter totalFailures) {
+            this.connection = connection;
+            this.totalBytes = totalBytes;
+            this.totalDropped = totalDropped;
+            this.totalFailures = totalFailures;
+        }
+
+        // False if the policy says the client has to go
+        synchronized boolean offer(EncodedMessage message, Policy policy, int capacity) {
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        dropped += queue.size() + 1;
+                        totalDropped.add(queue.size() + 1);
+                        queue.clear();
+                        return false;
+                    case LATEST_REVOLUTION:
+                        if (cullRevolutions(message, capacity)) {
+                            break;
+                        }
+                        // Nothing queued is from a revolution, fall through to dropping the oldest
+                    case DROP_OLDEST:
+                        queue.poll();
+                        dropped++;
+                        totalDropped.increment();
+                        break;
+                }
+            }
+            queue.add(message);
+            return true;
+        }
+
+        /*
+         * Throws out the scans from revolutions before the newest one, then the oldest scan if that wasn't enough.
+         * Messages that aren't part of a revolution (poses, ToF batches) are left alone, they are usually what a slow
+         * client needs most. False if there was no scan to throw out
+         */
+        private boolean cullRevolutions(EncodedMessage message, int capacity) {
+            int newest = message.revolution;
+            for (EncodedMessage queued : queue) {
+                newest = Math.max(newest, queued.revolution);
+            }
+            for (Iterator<EncodedMessage> it = queue.iterator(); it.hasNext(); ) {
+                int revolution = it.next().revolution;
+                if (revolution >= 0 && revolution < newest) {
+                    it.remove();
+                    dropped++;
+                    totalDropped.increment();
+                }
+            }
+            if (queue.size() < capacity) {
+                return true;
+            }
+            for (Iterator<EncodedMessage> it = queue.iterator(); it.hasNext(); ) {
+                if (it.next().revolution >= 0) {
+                    it.remove();
+                    dropped++;
+                    totalDropped.increment();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void flush() {
+            EncodedMessage message;
+            while ((message = queue.peek()) != null && connection.isConnected()
+                    && connection.getTcpWriteBufferSize() + message.size() <= MAX_PENDING_BYTES) {
+                queue.poll();
+                int bytes = connection.sendTCP(message);
+                if (bytes == 0) {
+                    totalFailures.increment();
+                    return; // kryonet closed the connection
+                }
+                totalBytes.add(bytes);
+                long latency = System.nanoTime() - message.timestamp;
+                meanLatency = sent == 0 ? latency : meanLatency + (latency - meanLatency) * LATENCY_SMOOTHING;
+                maxLatency = Math.max(maxLatency, latency);
+                sent++;
+            }
+        }
+
+        public int getId() {
+            return connection.getID();
+        }
+
+        public synchronized int getQueued() {
+            return queue.size();
+        }
+
+        public synchronized long getSent() {
+            return sent;
+        }
+
+        public synchronized long getDropped() {
+            return dropped;
+        }
+
+        public synchronized double getMeanLatency() {
+            return meanLatency;
+        }
+
+        public synchronized long getMaxLatency() {
+            return maxLatency;
+        }
+
+        // Bytes in kryonet's write buffer that haven't made it to the socket yet
+        public int getPendingBytes() {
+            return connection.getTcpWriteBufferSize();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%d: %d sent, %d dropped, %d queued, %.1fms mean latency, %.1fms max",
+                    getId(), sent, dropped, queue.size(), meanLatency / 1e6, maxLatency / 1e6);
+        }
+    }
+}
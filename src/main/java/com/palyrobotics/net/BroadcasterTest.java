@@ -0,0 +1,66 @@
+package com.palyrobotics.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BroadcasterTest {
+
+    private static EncodedMessage message(int revolution) {
+        return new EncodedMessage(new byte[8], revolution, System.nanoTime());
+    }
+
+    @Test
+    public void dropsOldestWhenFull() {
+        Broadcaster.Client client = new Broadcaster.Client(null);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(client.offer(message(0), Broadcaster.Policy.DROP_OLDEST, 3));
+        }
+        assertEquals(3, client.getQueued());
+        assertEquals(2, client.getDropped());
+    }
+
+    @Test
+    public void keepsOnlyTheLatestRevolution() {
+        Broadcaster.Client client = new Broadcaster.Client(null);
+        client.offer(message(1), Broadcaster.Policy.LATEST_REVOLUTION, 3);
+        client.offer(message(1), Broadcaster.Policy.LATEST_REVOLUTION, 3);
+        client.offer(message(2), Broadcaster.Policy.LATEST_REVOLUTION, 3);
+        client.offer(message(3), Broadcaster.Policy.LATEST_REVOLUTION, 3); // Full, everything before revolution 3 goes
+        assertEquals(1, client.getQueued());
+        assertEquals(3, client.getDropped());
+
+        client.offer(message(3), Broadcaster.Policy.LATEST_REVOLUTION, 3);
+        client.offer(message(3), Broadcaster.Policy.LATEST_REVOLUTION, 3);
+        client.offer(message(3), Broadcaster.Policy.LATEST_REVOLUTION, 3); // Nothing older to throw out, so the oldest goes
+        assertEquals(3, client.getQueued());
+        assertEquals(4, client.getDropped());
+    }
+
+    @Test
+    public void keepsMessagesThatArentPartOfARevolution() {
+        Broadcaster.Client client = new Broadcaster.Client(null);
+        client.offer(message(-1), Broadcaster.Policy.LATEST_REVOLUTION, 4); // A pose
+        client.offer(message(1), Broadcaster.Policy.LATEST_REVOLUTION, 4);
+        client.offer(message(-1), Broadcaster.Policy.LATEST_REVOLUTION, 4);
+        client.offer(message(2), Broadcaster.Policy.LATEST_REVOLUTION, 4);
+        client.offer(message(-1), Broadcaster.Policy.LATEST_REVOLUTION, 4); // Full, only revolution 1 goes
+        assertEquals(4, client.getQueued());
+        assertEquals(1, client.getDropped());
+
+        client.offer(message(-1), Broadcaster.Policy.LATEST_REVOLUTION, 4); // Only revolution 2 is left to throw out
+        assertEquals(4, client.getQueued());
+        assertEquals(2, client.getDropped());
+
+        client.offer(message(3), Broadcaster.Policy.LATEST_REVOLUTION, 4); // No scans queued, the oldest pose goes
+        assertEquals(4, client.getQueued());
+        assertEquals(3, client.getDropped());
+    }
+
+    @Test
+    public void disconnectsWhenFull() {
+        Broadcaster.Client client = new Broadcaster.Client(null);
+        assertTrue(client.offer(message(0), Broadcaster.Policy.DISCONNECT, 1));
+        assertFalse(client.offer(message(0), Broadcaster.Policy.DISCONNECT, 1));
+    }
+}
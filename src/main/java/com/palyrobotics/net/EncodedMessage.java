@@ -0,0 +1,22 @@
+package com.palyrobotics.net;
+
+/**
+ * A message that was already serialized by a {@link Broadcaster}, {@link BroadcastSerialization} copies the bytes
+ * into a connection's buffer instead of running Kryo again for every client
+ */
+public class EncodedMessage {
+
+    final byte[] bytes;
+    final int revolution; // -1 for messages that aren't part of a revolution
+    final long timestamp; // System.nanoTime() it was encoded at, what send latency is measured from
+
+    EncodedMessage(byte[] bytes, int revolution, long timestamp) {
+        this.bytes = bytes;
+        this.revolution = revolution;
+        this.timestamp = timestamp;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+}
@@ -0,0 +1,55 @@
+package com.palyrobotics.net;
+
+/**
+ * A batch of lidar samples sent as one message, either a single packet or a whole revolution.
+ * The samples are equal angle measurements apart, so only the distances are sent
+ */
+public class LidarScan {
+
+    public float startAngle; // Degrees, not wrapped so a revolution can go slightly past 360
+    public float angleStep;
+    public float[] distances;
+    public long sequence; // Counts up by one for every scan the lidar sends, so receivers can tell what got lost or came late
+    public int revolution; // Which revolution the samples are from
+    public long timestamp; // The server's System.nanoTime() of the last sample, only comparable with other scans from it
+    public long samplePeriod; // ns between samples
+
+    public LidarScan() { // Kryo needs this
+    }
+
+    public LidarScan(float startAngle, float angleStep, float[] distances) {
+        this.startAngle = startAngle;
+        this.angleStep = angleStep;
+        this.distances = distances;
+    }
+
+    public LidarScan(float startAngle, float angleStep, float[] distances, long sequence, int revolution) {
+        this(startAngle, angleStep, distances);
+        this.sequence = sequence;
+        this.revolution = revolution;
+    }
+
+    public LidarScan(float startAngle, float angleStep, float[] distances, long sequence, int revolution, long timestamp, long samplePeriod) {
+        this(startAngle, angleStep, distances, sequence, revolution);
+        this.timestamp = timestamp;
+        this.samplePeriod = samplePeriod;
+    }
+
+    public int size() {
+        return distances.length;
+    }
+
+    public float getAngle(int i) {
+        float angle = startAngle + angleStep * i;
+        return angle >= 360 ? angle - 360 : angle;
+    }
+
+    public float getDistance(int i) {
+        return distances[i];
+    }
+
+    // When sample i was measured, in the server's clock
+    public long getTime(int i) {
+        return timestamp - (distances.length - 1 - i) * samplePeriod;
+    }
+}
@@ -0,0 +1,23 @@
+package com.palyrobotics.net;
+
+import com.esotericsoftware.kryo.Kryo;
+
+/**
+ * Every class sent between the sensors and their clients.
+ * Kryo ids depend on registration order, so both ends have to register through here
+ */
+public class Messages {
+
+    // Kryonet's defaults (2KB objects) are too small for a whole revolution, both ends need the bigger buffers
+    public static final int WRITE_BUFFER_SIZE = 1 << 16;
+    public static final int OBJECT_BUFFER_SIZE = 1 << 14;
+
+    public static void register(Kryo kryo) {
+        kryo.register(float[].class); // Single {angle, distance} samples
+        kryo.register(LidarScan.class);
+        kryo.register(int[].class);
+        kryo.register(RangeBatch.class);
+        kryo.register(Subscribe.class);
+        kryo.register(PoseMessage.class);
+    }
+}
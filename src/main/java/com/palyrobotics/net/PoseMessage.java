@@ -0,0 +1,36 @@
+package com.palyrobotics.net;
+
+/**
+ * Where the lidar is, worked out on the lidar's machine once per revolution. The transform takes the reference into
+ * the lidar's frame like ICP's, floats keep the whole message around 30 bytes
+ */
+public class PoseMessage {
+
+    public long revolution; // Counts up with every revolution, gaps are revolutions ICP skipped or whose poses got lost
+    public long timestamp; // The server's System.nanoTime() of the revolution's last sample
+    public float theta, tx, ty;
+    public float residual; // ICP's error in mm
+    public int iterations;
+    public boolean converged;
+
+    public PoseMessage() { // Kryo needs this
+    }
+
+    public PoseMessage(long revolution, long timestamp, float theta, float tx, float ty, float residual, int iterations,
+                       boolean converged) {
+        this.revolution = revolution;
+        this.timestamp = timestamp;
+        this.theta = theta;
+        this.tx = tx;
+        this.ty = ty;
+        this.residual = residual;
+        this.iterations = iterations;
+        this.converged = converged;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d: (%.1f, %.1f) %.3f error %.1f after %d iterations%s", revolution, tx, ty, theta, residual,
+                iterations, converged ? "" : " (not converged)");
+    }
+}
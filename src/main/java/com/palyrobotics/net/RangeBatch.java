@@ -0,0 +1,32 @@
+package com.palyrobotics.net;
+
+/**
+ * Time of flight readings sent together, oldest first. Only readings that passed the sensor's checks are in here,
+ * so a batch can be shorter than the frames that came in
+ */
+public class RangeBatch {
+
+    public long sequence; // Counts up by one for every batch
+    public float interval; // Seconds between the readings, roughly
+    public int[] distances; // cm, after filtering
+    public int[] strengths;
+
+    public RangeBatch() { // Kryo needs this
+    }
+
+    public RangeBatch(long sequence, float interval, int[] distances, int[] strengths) {
+        this.sequence = sequence;
+        this.interval = interval;
+        this.distances = distances;
+        this.strengths = strengths;
+    }
+
+    public int size() {
+        return distances.length;
+    }
+
+    // The newest reading, -1 if the batch is empty
+    public int latest() {
+        return distances.length == 0 ? -1 : distances[distances.length - 1];
+    }
+}
@@ -0,0 +1,51 @@
+package com.palyrobotics.net;
+
+/**
+ * Keeps track of the sequence numbers of scans that came over UDP. Anything older than the newest scan so far is late
+ * and should be thrown out instead of being used or waited for, and gaps in the sequence are counted as lost.
+ * Call reset() when the connection is made again, the sequence starts over when the sensor restarts
+ */
+public class SequenceTracker {
+
+    private long last = -1;
+    private long received, lost, late;
+
+    // False if the scan is late or a duplicate
+    public boolean accept(LidarScan scan) {
+        return accept(scan.sequence);
+    }
+
+    public boolean accept(long sequence) {
+        if (sequence <= last) {
+            late++;
+            return false;
+        }
+        if (last >= 0) {
+            lost += sequence - last - 1; // Late ones are counted here too, they are as good as lost
+        }
+        last = sequence;
+        received++;
+        return true;
+    }
+
+    public void reset() {
+        last = -1;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getLost() {
+        return lost;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d received, %d lost, %d late", received, lost, late);
+    }
+}
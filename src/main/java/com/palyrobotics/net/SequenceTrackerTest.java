@@ -0,0 +1,32 @@
+package com.palyrobotics.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SequenceTrackerTest {
+
+    @Test
+    public void dropsLateScansAndCountsGaps() {
+        SequenceTracker tracker = new SequenceTracker();
+        assertTrue(tracker.accept(0));
+        assertTrue(tracker.accept(1));
+        assertTrue(tracker.accept(4));
+        assertFalse(tracker.accept(3)); // Came after 4
+        assertFalse(tracker.accept(4)); // Duplicate
+        assertTrue(tracker.accept(5));
+
+        assertEquals(4, tracker.getReceived());
+        assertEquals(2, tracker.getLost());
+        assertEquals(2, tracker.getLate());
+    }
+
+    @Test
+    public void startsOverAfterReset() {
+        SequenceTracker tracker = new SequenceTracker();
+        assertTrue(tracker.accept(100));
+        tracker.reset();
+        assertTrue(tracker.accept(0));
+        assertEquals(0, tracker.getLost());
+    }
+}
@@ -0,0 +1,18 @@
+package com.palyrobotics.net;
+
+/**
+ * Sent by a client to say whether it wants the sensor's raw data (scans, samples) or only what is worked out from it
+ * (poses). A server running ICP only sends raw data to clients that ask for it, everything else sends it to everyone
+ * unless they ask not to
+ */
+public class Subscribe {
+
+    public boolean raw;
+
+    public Subscribe() { // Kryo needs this
+    }
+
+    public Subscribe(boolean raw) {
+        this.raw = raw;
+    }
+}
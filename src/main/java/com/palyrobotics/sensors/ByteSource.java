@@ -0,0 +1,26 @@
+package com.palyrobotics.sensors;
+
+/**
+ * Where a {@link SerialSensor} gets its bytes from, a real serial port or a simulated device.
+ * Reads never wait, they only return what is already available
+ */
+public interface ByteSource {
+
+    boolean open();
+
+    void close();
+
+    boolean isOpen();
+
+    int bytesAvailable();
+
+    // Same argument order as jSerialComm's readBytes, returns the amount read or negative if the source failed
+    int read(byte[] buffer, int length, int offset);
+
+    int write(byte[] buffer, int length, int offset);
+
+    // Called whenever new bytes are available, on a thread owned by the source. Null stops the calls
+    void setDataListener(Runnable listener);
+
+    String getName();
+}
@@ -1,190 +1,202 @@
 package com.palyrobotics.sensors;
 
-import com.esotericsoftware.kryonet.Connection;
-import com.esotericsoftware.kryonet.Listener;
-import com.esotericsoftware.kryonet.Server;
 import com.fazecast.jSerialComm.SerialPort;
+import com.palyrobotics.metrics.Counter;
+import com.palyrobotics.metrics.Histogram;
+import com.palyrobotics.net.LidarScan;
 
-import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-/*
+public class Lidar extends SerialSensor {
 
- */
+    // How samples are grouped into messages, SAMPLE is the old one float[]{angle, distance} per message
+    public enum Batching {
+        SAMPLE, PACKET, REVOLUTION
+    }
+
+    static final int BAUD_RATE = 128000;
 
-public class Lidar implements Sensor {
+    private final LidarPacketDecoder decoder = new LidarPacketDecoder();
+    private final LidarPacket packet = new LidarPacket();
 
-    // TODO: make an abstract class for SerialSensors, it should have the baudrate and serial port as fields
+    private final Batching batching;
+    private final List<LidarPacketListener> packetListeners = new CopyOnWriteArrayList<>();
+    private float[] revolution = new float[1024]; // Distances of the revolution being built in REVOLUTION mode
+    private int revolutionSize;
+    private float revolutionStart;
+    private float lastAngle; // Not wrapped, so it can be compared against revolutionStart
+    private long lastTimestamp, samplePeriod; // Of the last packet in the revolution
 
-    static final int TIMEOUT = 10000;
+    private long sequence; // Of the next LidarScan
+    private int revolutionId;
+    private float lastStartingAngle;
 
-    private final String description;
-    private final Server server;
-    private final int tcpPort;
-    private SerialPort serialPort;
-    private boolean running;
+    private final Counter packets = metrics.counter(metricsPrefix + ".packets");
+    private final Counter samples = metrics.counter(metricsPrefix + ".samples");
+    private final Histogram samplesPerRevolution = metrics.histogram(metricsPrefix + ".samples_per_revolution");
+    private int revolutionSamples;
 
     public Lidar(String description, int tcpPort)  {
-        this.description = description;
-        this.running = false;
-        this.server = new Server();
-        this.tcpPort = tcpPort;
-
-        openPort();
-        setUpServer();
-    }
-
-    private void setUpServer() { // TODO: maybe make Sensor an abstract class with this as it is similar to KumquatVision
-        server.start();
-        server.getKryo().register(float[].class);
-        server.addListener(new Listener() {
-            @Override
-            public void connected(Connection connection) {
-                System.out.println("Connected");
-            }
+        this(description, tcpPort, Batching.PACKET);
+    }
 
-            @Override
-            public void disconnected(Connection connection) {
-                System.out.println("Disconnected");
-            }
-        });
-        try {
-            server.bind(tcpPort);
-        } catch (IOException connectException) {
-            connectException.printStackTrace();
-        }
+    public Lidar(String description, int tcpPort, Batching batching)  {
+        this(description, tcpPort, batching, SerialReactor.getShared());
     }
 
-    public void openPort() {
-        if (serialPort != null) {
-            return;
-        }
+    public Lidar(String description, int tcpPort, Batching batching, SerialReactor reactor)  {
+        this(description, tcpPort, 0, batching, reactor);
+    }
 
-        SerialPort[] ports = SerialPort.getCommPorts();
-        for (var p : ports) {
-            if (p.getSystemPortName().contains(description) || p.getDescriptivePortName().contains(description)) {
-                // After a lot of testing these are the settings that work
-                serialPort = p;
-                serialPort.clearDTR();
-                serialPort.setRTS();
-                serialPort.setBaudRate(128000);
-                serialPort.setFlowControl(SerialPort.FLOW_CONTROL_DISABLED);
-                serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, TIMEOUT, TIMEOUT); // TODO: Find out if timeout is in secs, and what timeout method to use                //port.clearDTR();
-                serialPort.openPort();
-//                try {
-//                    Thread.sleep(1000);
-//                } catch (InterruptedException e) {
-//                    e.printStackTrace();
-//                }
-                return;
-            }
-        }
+    // Scans go over UDP to clients that connect with the UDP port, everything else stays on TCP
+    public Lidar(String description, int tcpPort, int udpPort, Batching batching)  {
+        this(description, tcpPort, udpPort, batching, SerialReactor.getShared());
     }
 
-    @Override
-    public void init() {
-        if (serialPort != null && !running) {
-            new Thread(this).start();
-        }
+    public Lidar(String description, int tcpPort, int udpPort, Batching batching, SerialReactor reactor)  {
+        super(description, BAUD_RATE, tcpPort, udpPort, reactor);
+        this.batching = batching;
+        registerGauges();
     }
 
-    @Override
-    public void terminate() {
-        serialPort.writeBytes(new byte[] { (byte) 0xA5, (byte) 0x65 }, 2, 0); // Stops the motor and the scanner
-        serialPort.closePort(); // Should generate and error for the thread and close it
+    public Lidar(ByteSource source, int tcpPort, Batching batching, SerialReactor reactor)  {
+        this(source, tcpPort, 0, batching, reactor);
+    }
+
+    public Lidar(ByteSource source, int tcpPort, int udpPort, Batching batching, SerialReactor reactor)  {
+        super(source, tcpPort, udpPort, reactor);
+        this.batching = batching;
+        registerGauges();
+    }
+
+    // The decoder's counts are plain longs written by one worker, good enough to read for monitoring
+    private void registerGauges() {
+        metrics.gauge(metricsPrefix + ".checksum_failures", decoder::getChecksumFailures);
+        metrics.gauge(metricsPrefix + ".resyncs", decoder::getResyncs);
+        metrics.gauge(metricsPrefix + ".skipped_bytes", decoder::getSkippedBytes);
     }
 
     @Override
-    public String getName() {
-        return "TimeOfFlightSensor";
+    protected boolean matches(SerialPort port, String description) {
+        return port.getSystemPortName().contains(description) || port.getDescriptivePortName().contains(description);
     }
 
     @Override
-    public void run() {
-        running = true;
+    protected void configurePort(SerialPort port) {
+        // After a lot of testing these are the settings that work
+        port.clearDTR();
+        port.setRTS();
+        port.setFlowControl(SerialPort.FLOW_CONTROL_DISABLED);
+    }
 
-        openPort();
+    // For things running on the same machine as the lidar that want every packet without going through the network
+    public void addPacketListener(LidarPacketListener listener) {
+        packetListeners.add(listener);
+    }
 
-        serialPort.writeBytes(new byte[] {(byte) 0xA5, (byte) 0x60 }, 2, 0); // Starts the motor and the scanner
-        readHeader();
-        while (serialPort.isOpen()) {
-            getDistance();
-        }
+    // Records every packet from the port until it is set to null
+    public void setRecorder(LidarRecorder recorder) {
+        decoder.setRecorder(recorder);
     }
 
-    public void readHeader() { // When you first write the command to start the motor, it will send a lot of redundant text first
-        var stream = serialPort.getInputStream();
+    // For the decoder's counters, it is only safe to touch from the thread the lidar runs on
+    public LidarPacketDecoder getDecoder() {
+        return decoder;
+    }
 
-        while (true) {
-            try {
-                int header = stream.read();
-                if (header != 0xA5) continue;
-                header = stream.read();
-                if (header != 0x5A) continue;
-                int length = stream.read();
-                for (int i = 0; i < length - 1; i++) {
-                    stream.read();
-                }
-                return;
-            } catch (IOException ex) {
-                return;
-            }
-        }
+    // The text the lidar sends after the start command doesn't have the packet header, so the decoder skips it
+    @Override
+    protected void onStart() {
+        source.write(new byte[] {(byte) 0xA5, (byte) 0x60 }, 2, 0); // Starts the motor and the scanner
     }
 
-    public void getDistance() { // See, I do sometimes write comments in my code :)
-        var stream = serialPort.getInputStream();
+    @Override
+    protected void onStop() {
+        source.write(new byte[] { (byte) 0xA5, (byte) 0x65 }, 2, 0); // Stops the motor and the scanner
+    }
 
-        try {
-            while (true) { // Makes sure the header is the first thing that is read
-                int header = (0xff & stream.read());
-                int h2 = stream.read() & 0xFF;
+    @Override
+    public String getName() {
+        return "Lidar";
+    }
 
-                header = (h2 << 8) + header;
-                if (header == 0x55AA) {
-                    break;
-                }
+    @Override
+    protected void onBytes(byte[] bytes, int offset, int length, long timestamp) {
+        while (length > 0) {
+            int accepted = decoder.feed(bytes, offset, length, timestamp);
+            offset += accepted;
+            length -= accepted;
+            // Send every complete packet that came in, the rest stays buffered until more bytes arrive
+            while (decoder.next(packet)) {
+                handlePacket(packet);
             }
+        }
+    }
 
-            // Packets follow this order: package type (1B), sample quantity (1B), starting angle (2B), ending angle (2B), check sum (2B),
-            // for the next sample quantity, there are 2B packets which represent the distance. The distances are equal angle measurements apart
-            // In 2 byte numbers, the first byte is always the least significant byte and the second byte is the most significant
-            int packageType = stream.read();
-            int sampleQuantity = stream.read();
-            float startingAngle = stream.read();
-            startingAngle = (startingAngle + (stream.read() << 8)) / 128;
-            float endAngle = stream.read();
-            endAngle = (endAngle + (stream.read() << 8)) / 128;
-            // Increase the end angle by 360 when it is smaller than the starting angle to not have negative delta
-            if (endAngle < startingAngle) {
-                endAngle += 360;
+    /**
+     * Sends a decoded packet to the clients and any packet listeners. Public so recordings can be replayed through here
+     */
+    public void handlePacket(LidarPacket packet) {
+        for (var listener : packetListeners) {
+            listener.onPacket(packet);
+        }
+
+        if (packet.getStartingAngle() < lastStartingAngle - 180) { // Wrapped around
+            revolutionId++;
+            if (revolutionId > 1) { // The first one started wherever the lidar happened to be
+                samplesPerRevolution.record(revolutionSamples);
             }
-            // Each distance will be stepAngle apart starting from startingAngle
-            float stepAngle = (endAngle - startingAngle) / (float) sampleQuantity;
-            int checkCode = stream.read();
-            checkCode = checkCode << 8 + stream.read(); // TODO: actually use this
-
-            // Read and send the distances
-            for (int i = 0; i < sampleQuantity; i++) {
-                int lsb = stream.read(); // TODO: make this nice
-                int msb = stream.read();
-
-                float angle = startingAngle + stepAngle * i;
-                float distance = ((msb << 8) + lsb) / 4f;
-
-                var msg = new float[]{angle > 360 ? angle - 360 : angle, distance};  // the lidar sometimes gives angles above 360, idk why?
-                var connectionList = server.getConnections();
-                for (var connection: connectionList) { // I know sendTCPToAll exists, but it gave bugs so...
-                    try {
-                        server.sendToTCP(connection.getID(), msg); // TODO: determine if TCP or UDP is better in this scenario
-                    } catch (Throwable t) {
-                        System.err.println("Closing " + connection.getID());
-                        connection.close();
-                    }
+            revolutionSamples = 0;
+        }
+        lastStartingAngle = packet.getStartingAngle();
+        packets.increment();
+        samples.add(packet.getSampleQuantity());
+        revolutionSamples += packet.getSampleQuantity();
+
+        switch (batching) {
+            case SAMPLE:
+                for (int i = 0; i < packet.getSampleQuantity(); i++) {
+                    send(new float[]{packet.getAngle(i), packet.getDistance(i)}, revolutionId, true); // No room for times here
                 }
+                break;
+            case PACKET:
+                send(new LidarScan(packet.getStartingAngle(), packet.getStepAngle(),
+                        Arrays.copyOf(packet.getDistances(), packet.getSampleQuantity()), sequence++, revolutionId,
+                        packet.getTimestamp(), packet.getSamplePeriod()), revolutionId, true);
+                break;
+            case REVOLUTION:
+                addToRevolution(packet);
+                break;
+        }
+    }
+
+    private void addToRevolution(LidarPacket packet) {
+        if (revolutionSize > 0 && packet.getStartingAngle() < lastAngle - 180) { // The angle wrapped around, so the revolution is done
+            if (revolutionSize > 1) {
+                float step = (lastAngle - revolutionStart) / (revolutionSize - 1);
+                // Whole revolutions are bigger than a UDP packet should be, a lost fragment would lose all of it
+                send(new LidarScan(revolutionStart, step, Arrays.copyOf(revolution, revolutionSize), sequence++, revolutionId - 1,
+                        lastTimestamp, samplePeriod), revolutionId - 1, false);
             }
-        } catch (IOException ex) {
-            System.err.println("Port not working correctly");
-            ex.printStackTrace();
+            revolutionSize = 0;
+        }
+
+        int quantity = packet.getSampleQuantity();
+        if (quantity == 0) {
+            return;
+        }
+        if (revolutionSize == 0) {
+            revolutionStart = packet.getStartingAngle();
+        }
+        if (revolutionSize + quantity > revolution.length) {
+            revolution = Arrays.copyOf(revolution, revolution.length * 2);
         }
+        System.arraycopy(packet.getDistances(), 0, revolution, revolutionSize, quantity);
+        revolutionSize += quantity;
+        lastAngle = packet.getStartingAngle() + packet.getStepAngle() * (quantity - 1);
+        lastTimestamp = packet.getTimestamp();
+        samplePeriod = packet.getSamplePeriod();
     }
 }
@@ -0,0 +1,69 @@
+package com.palyrobotics.sensors;
+
+/**
+ * A single decoded 0x55AA packet from the lidar.
+ * The decoder reuses the same instance for every packet, so copy anything that needs to outlive the next call
+ */
+public class LidarPacket {
+
+    public static final int MAX_SAMPLES = 0xFF; // The sample quantity is a single byte
+
+    final float[] distances = new float[MAX_SAMPLES];
+    int packageType;
+    int sampleQuantity;
+    float startingAngle;
+    float stepAngle;
+    long timestamp;
+    long samplePeriod;
+
+    public int getPackageType() {
+        return packageType;
+    }
+
+    // Bit 0 of the package type is set on the first packet of every revolution
+    public boolean isRevolutionStart() {
+        return (packageType & 0x01) == 1;
+    }
+
+    // System.nanoTime() of when the last byte came in, the time of the read minus however long the bytes after it took
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // ns between samples, estimated from how fast packets have been coming in
+    public long getSamplePeriod() {
+        return samplePeriod;
+    }
+
+    // When sample i was measured, the last sample is the one closest to the timestamp
+    public long getTime(int i) {
+        return timestamp - (sampleQuantity - 1 - i) * samplePeriod;
+    }
+
+    public int getSampleQuantity() {
+        return sampleQuantity;
+    }
+
+    public float getStartingAngle() {
+        return startingAngle;
+    }
+
+    public float getStepAngle() {
+        return stepAngle;
+    }
+
+    // The lidar sometimes gives angles above 360, so they are wrapped here
+    public float getAngle(int i) {
+        float angle = startingAngle + stepAngle * i;
+        return angle >= 360 ? angle - 360 : angle;
+    }
+
+    public float getDistance(int i) {
+        return distances[i];
+    }
+
+    // The backing array is only valid up to getSampleQuantity()
+    public float[] getDistances() {
+        return distances;
+    }
+}
@@ -0,0 +1,190 @@
+package com.palyrobotics.sensors;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes the lidar's 0x55AA packets out of bulk reads instead of reading the port one byte at a time.
+ * <p>
+ * Packets follow this order: header (2B), package type (1B), sample quantity (1B), starting angle (2B), ending angle (2B),
+ * check code (2B), then sample quantity 2B distances which are equal angle measurements apart.
+ * All 2 byte numbers are little endian. The check code is the XOR of every other 2 byte word in the packet,
+ * with the package type as the low byte and the sample quantity as the high byte of their word.
+ */
+public class LidarPacketDecoder {
+
+    static final int HEADER = 0x55AA;
+    static final int HEADER_SIZE = 10;
+    static final int MAX_PACKET_SIZE = HEADER_SIZE + 2 * LidarPacket.MAX_SAMPLES;
+
+    private static final int BUFFER_SIZE = 4096;
+    static final long BYTE_TIME = 10 * 1_000_000_000L / Lidar.BAUD_RATE; // ns, 8N1 is 10 bits a byte
+    static final long DEFAULT_SAMPLE_PERIOD = 200_000; // ns, the lidar does about 5000 samples a second
+    private static final long MAX_PACKET_GAP = 100_000_000; // ns, longer gaps say nothing about the sample rate
+
+    // Always kept in read mode, everything between position and limit has not been parsed yet
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long timestamp; // Of the latest read
+    private long lastPacketTime;
+    private long samplePeriod = DEFAULT_SAMPLE_PERIOD;
+    private LidarRecorder recorder;
+
+    private long packets;
+    private long checksumFailures;
+    private long skippedBytes;
+    private long resyncs;
+    private boolean synced = true; // False from losing the packet boundaries until the next good packet
+
+    public LidarPacketDecoder() {
+        buffer.flip();
+    }
+
+    /**
+     * Copies bytes read from the port, a recording or a test into the buffer
+     *
+     * @return how many bytes fit, call {@link #next(LidarPacket)} to make room for the rest
+     */
+    public int feed(byte[] bytes, int offset, int length) {
+        return feed(bytes, offset, length, System.nanoTime());
+    }
+
+    // Same as above for bytes that were read at an earlier time
+    public int feed(byte[] bytes, int offset, int length, long timestamp) {
+        buffer.compact();
+        int accepted = Math.min(length, buffer.remaining());
+        buffer.put(bytes, offset, accepted);
+        buffer.flip();
+        this.timestamp = timestamp;
+        return accepted;
+    }
+
+    /**
+     * Copies everything remaining in source (at most one buffer's worth) in one go, with the time it was originally read at
+     */
+    public void feed(ByteBuffer source, long timestamp) {
+        buffer.compact();
+        if (source.remaining() > buffer.remaining()) {
+            buffer.flip();
+            throw new IllegalArgumentException("Feeding " + source.remaining() + " bytes into a decoder with room for " + buffer.remaining());
+        }
+        buffer.put(source);
+        buffer.flip();
+        this.timestamp = timestamp;
+    }
+
+    // Every packet with a good check code gets recorded from now on, null stops recording. A packet inside a corrupted
+    // one would otherwise be recorded twice
+    public void setRecorder(LidarRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Parses the next valid packet in the buffer into {@code packet}
+     *
+     * @return false when the buffer does not hold a complete packet anymore
+     */
+    public boolean next(LidarPacket packet) {
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            if ((buffer.getShort(start) & 0xFFFF) != HEADER) { // Resync by sliding one byte at a time until the header is found
+                buffer.position(start + 1);
+                skippedBytes++;
+                lostSync();
+                continue;
+            }
+
+            int packageType = buffer.get(start + 2) & 0xFF;
+            int sampleQuantity = buffer.get(start + 3) & 0xFF;
+            int length = HEADER_SIZE + 2 * sampleQuantity;
+            if (buffer.remaining() < length) {
+                return false; // Wait for the rest of the packet
+            }
+
+            int startingAngle = buffer.getShort(start + 4) & 0xFFFF;
+            int endAngle = buffer.getShort(start + 6) & 0xFFFF;
+            int checkCode = buffer.getShort(start + 8) & 0xFFFF;
+
+            int check = HEADER ^ (packageType | sampleQuantity << 8) ^ startingAngle ^ endAngle;
+            for (int i = 0; i < sampleQuantity; i++) {
+                int sample = buffer.getShort(start + HEADER_SIZE + 2 * i) & 0xFFFF;
+                check ^= sample;
+                packet.distances[i] = sample / 4f;
+            }
+
+            if (check != checkCode) { // Skip past this header, a real packet could start inside the corrupted one
+                buffer.position(start + 2);
+                checksumFailures++;
+                lostSync();
+                continue;
+            }
+            buffer.position(start + length);
+
+            // Every byte after this packet came in after it, a read that picked up several packets would give them all the same time
+            long time = timestamp - buffer.remaining() * BYTE_TIME;
+            long gap = time - lastPacketTime;
+            if (sampleQuantity > 0 && gap > 0 && gap < MAX_PACKET_GAP) {
+                samplePeriod += (gap / sampleQuantity - samplePeriod) / 8;
+            }
+            lastPacketTime = time;
+
+            // With the time it was given here, a replay fed one packet at a time gives it the same one
+            if (recorder != null) {
+                try {
+                    recorder.record(buffer.array(), buffer.arrayOffset() + start, length, time);
+                } catch (IOException e) {
+                    System.err.println("Recording failed, not recording anymore");
+                    e.printStackTrace();
+                    recorder = null;
+                }
+            }
+
+            packet.packageType = packageType;
+            packet.sampleQuantity = sampleQuantity;
+            packet.timestamp = time;
+            packet.samplePeriod = samplePeriod;
+            packet.startingAngle = startingAngle / 128f;
+            float end = endAngle / 128f;
+            // Increase the end angle by 360 when it is smaller than the starting angle to not have negative delta
+            if (end < packet.startingAngle) {
+                end += 360;
+            }
+            // Each distance will be stepAngle apart starting from startingAngle
+            packet.stepAngle = sampleQuantity == 0 ? 0 : (end - packet.startingAngle) / sampleQuantity;
+            packets++;
+            synced = true;
+            return true;
+        }
+        return false;
+    }
+
+    // ns between samples, smoothed over the last few packets
+    public long getSamplePeriod() {
+        return samplePeriod;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    public long getChecksumFailures() {
+        return checksumFailures;
+    }
+
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    // How many times it had to look for the next packet, a burst of garbage only counts once
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    private void lostSync() {
+        if (synced) {
+            resyncs++;
+            synced = false;
+        }
+    }
+}
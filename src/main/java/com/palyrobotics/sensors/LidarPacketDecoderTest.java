@@ -0,0 +1,97 @@
+package com.palyrobotics.sensors;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class LidarPacketDecoderTest {
+
+    private static byte[] packet(int packageType, int startingAngle, int endAngle, int... samples) {
+        ByteBuffer out = ByteBuffer.allocate(LidarPacketDecoder.HEADER_SIZE + 2 * samples.length).order(ByteOrder.LITTLE_ENDIAN);
+        int check = LidarPacketDecoder.HEADER ^ (packageType | samples.length << 8) ^ startingAngle ^ endAngle;
+        for (int sample : samples) {
+            check ^= sample;
+        }
+        out.putShort((short) LidarPacketDecoder.HEADER).put((byte) packageType).put((byte) samples.length)
+                .putShort((short) startingAngle).putShort((short) endAngle).putShort((short) check);
+        for (int sample : samples) {
+            out.putShort((short) sample);
+        }
+        return out.array();
+    }
+
+    @Test
+    public void decodesAcrossFeeds() {
+        byte[] bytes = packet(0, 128 * 10, 128 * 13, 400, 800, 1200);
+        LidarPacketDecoder decoder = new LidarPacketDecoder();
+        LidarPacket packet = new LidarPacket();
+
+        decoder.feed(bytes, 0, 7);
+        assertFalse(decoder.next(packet));
+        decoder.feed(bytes, 7, bytes.length - 7);
+        assertTrue(decoder.next(packet));
+
+        assertEquals(3, packet.getSampleQuantity());
+        assertEquals(10, packet.getStartingAngle(), 1e-6);
+        assertEquals(1, packet.getStepAngle(), 1e-6);
+        assertEquals(12, packet.getAngle(2), 1e-6);
+        assertEquals(300, packet.getDistance(2), 1e-6);
+        assertFalse(decoder.next(packet));
+    }
+
+    @Test
+    public void resyncsAndRejectsBadChecksums() {
+        byte[] good = packet(1, 128 * 359, 128, 40, 80);
+        byte[] bad = packet(0, 0, 128, 40, 80);
+        bad[bad.length - 1] ^= 0x10;
+
+        byte[] stream = new byte[3 + bad.length + good.length];
+        stream[0] = (byte) 0xA5;
+        stream[1] = (byte) 0x5A;
+        stream[2] = (byte) 0xAA;
+        System.arraycopy(bad, 0, stream, 3, bad.length);
+        System.arraycopy(good, 0, stream, 3 + bad.length, good.length);
+
+        LidarPacketDecoder decoder = new LidarPacketDecoder();
+        LidarPacket packet = new LidarPacket();
+        decoder.feed(stream, 0, stream.length);
+
+        assertTrue(decoder.next(packet));
+        assertTrue(packet.isRevolutionStart());
+        assertEquals(0, packet.getAngle(1), 1e-6); // 359 + 1 wraps around
+        assertFalse(decoder.next(packet));
+        assertEquals(1, decoder.getPackets());
+        assertEquals(1, decoder.getChecksumFailures());
+    }
+
+    @Test
+    public void recordsAPacketInsideACorruptedOneOnce() throws IOException {
+        byte[] good = packet(0, 128 * 10, 128 * 12, 400, 800);
+        byte[] stream = new byte[LidarPacketDecoder.HEADER_SIZE + good.length];
+        ByteBuffer.wrap(stream).order(ByteOrder.LITTLE_ENDIAN).putShort((short) LidarPacketDecoder.HEADER).put((byte) 0)
+                .put((byte) (good.length / 2)).putShort((short) 0).putShort((short) 0).putShort((short) 0x1234); // Wrong check code
+        System.arraycopy(good, 0, stream, LidarPacketDecoder.HEADER_SIZE, good.length);
+
+        Path file = Files.createTempFile("lidar", ".rec");
+        try {
+            try (LidarRecorder recorder = new LidarRecorder(file.toString())) {
+                LidarPacketDecoder decoder = new LidarPacketDecoder();
+                decoder.setRecorder(recorder);
+                decoder.feed(stream, 0, stream.length);
+                assertTrue(decoder.next(new LidarPacket()));
+                assertEquals(1, decoder.getChecksumFailures());
+            }
+            try (LidarReplay replay = new LidarReplay(file.toString())) {
+                assertEquals(1, replay.play(new LidarPacketDecoder(), packet -> {}, 0));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.palyrobotics.sensors;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes packets in the same 0x55AA format the lidar sends, for anything that needs a byte stream without a lidar
+ * (benchmarks, simulations). See {@link LidarPacketDecoder} for the layout
+ */
+public class LidarPacketEncoder {
+
+    private LidarPacketEncoder() {
+    }
+
+    /**
+     * Writes one packet at the buffer's position, angles in degrees and distances in mm like {@link LidarPacket} gives them
+     *
+     * @return the amount of bytes written
+     */
+    public static int encode(ByteBuffer out, int packageType, float startingAngle, float endAngle, float[] distances, int count) {
+        if (count > LidarPacket.MAX_SAMPLES) {
+            throw new IllegalArgumentException("A packet holds at most " + LidarPacket.MAX_SAMPLES + " samples, got " + count);
+        }
+        ByteOrder order = out.order();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+
+        int start = Math.round(wrap(startingAngle) * 128) & 0xFFFF;
+        int end = Math.round(wrap(endAngle) * 128) & 0xFFFF;
+        int check = LidarPacketDecoder.HEADER ^ (packageType | count << 8) ^ start ^ end;
+        out.putShort((short) LidarPacketDecoder.HEADER).put((byte) packageType).put((byte) count)
+                .putShort((short) start).putShort((short) end);
+        int checkPosition = out.position();
+        out.putShort((short) 0); // Filled in once every sample has been xored in
+        for (int i = 0; i < count; i++) {
+            int sample = Math.min(0xFFFF, Math.max(0, Math.round(distances[i] * 4)));
+            check ^= sample;
+            out.putShort((short) sample);
+        }
+        out.putShort(checkPosition, (short) check);
+
+        out.order(order);
+        return LidarPacketDecoder.HEADER_SIZE + 2 * count;
+    }
+
+    private static float wrap(float angle) {
+        angle %= 360;
+        return angle < 0 ? angle + 360 : angle;
+    }
+}
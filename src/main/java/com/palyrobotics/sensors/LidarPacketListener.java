@@ -0,0 +1,7 @@
+package com.palyrobotics.sensors;
+
+// The packet is reused for the next one, so copy anything that needs to be kept
+@FunctionalInterface
+public interface LidarPacketListener {
+    void onPacket(LidarPacket packet);
+}
@@ -0,0 +1,56 @@
+package com.palyrobotics.sensors;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends raw lidar packets to a binary log so they can be replayed with {@link LidarReplay}.
+ * <p>
+ * The file starts with a magic number and a version (4B and 2B), then every record is the System.nanoTime() the packet
+ * was read at (8B), the packet length (2B) and the packet exactly as it came off the wire, check code included. Only
+ * packets with a good check code are recorded.
+ * Everything is little endian like the lidar itself
+ */
+public class LidarRecorder implements Closeable {
+
+    static final int MAGIC = 0x4C445243; // "LDRC"
+    static final short VERSION = 1;
+    static final int FILE_HEADER_SIZE = 6;
+    static final int RECORD_HEADER_SIZE = 10;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    public LidarRecorder(String file) throws IOException {
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(MAGIC).putShort(VERSION);
+    }
+
+    public synchronized void record(byte[] bytes, int offset, int length, long timestamp) throws IOException {
+        if (buffer.remaining() < RECORD_HEADER_SIZE + length) {
+            flush();
+        }
+        buffer.putLong(timestamp).putShort((short) length).put(bytes, offset, length);
+    }
+
+    public synchronized void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
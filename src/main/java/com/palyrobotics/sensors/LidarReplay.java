@@ -0,0 +1,100 @@
+package com.palyrobotics.sensors;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link LidarRecorder} log back through a {@link LidarPacketDecoder}, so everything after the decoder
+ * runs exactly like it would with the real lidar. The log is memory mapped instead of read through streams
+ */
+public class LidarReplay implements Closeable {
+
+    private static final long WINDOW_SIZE = 1L << 30; // Mapped a gigabyte at a time, a single mapping can't be over 2GB
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    public LidarReplay(String file) throws IOException {
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        size = channel.size();
+        map(0);
+        if (size < LidarRecorder.FILE_HEADER_SIZE || window.getInt(0) != LidarRecorder.MAGIC) {
+            throw new IOException(file + " is not a lidar recording");
+        }
+        if (window.getShort(4) != LidarRecorder.VERSION) {
+            throw new IOException(file + " is recording version " + window.getShort(4));
+        }
+    }
+
+    /**
+     * Feeds every record to the decoder and hands the decoded packets to the listener
+     *
+     * @param speed 1 plays in real time, 10 ten times as fast, 0 as fast as possible
+     * @return the amount of packets played
+     */
+    public long play(LidarPacketDecoder decoder, LidarPacketListener listener, double speed) throws IOException {
+        LidarPacket packet = new LidarPacket();
+        long packets = 0;
+        boolean started = false;
+        long firstTimestamp = 0, playStart = 0;
+
+        long position = LidarRecorder.FILE_HEADER_SIZE;
+        while (position + LidarRecorder.RECORD_HEADER_SIZE <= size) {
+            if (position + LidarRecorder.RECORD_HEADER_SIZE > windowStart + window.capacity()) {
+                map(position);
+            }
+            int offset = (int) (position - windowStart);
+            long timestamp = window.getLong(offset);
+            int length = window.getShort(offset + 8) & 0xFFFF;
+            long end = position + LidarRecorder.RECORD_HEADER_SIZE + length;
+            if (end > size) {
+                break; // The recording was cut off in the middle of a record
+            }
+            if (end > windowStart + window.capacity()) {
+                map(position);
+                offset = 0;
+            }
+
+            if (!started) {
+                firstTimestamp = timestamp;
+                playStart = System.nanoTime();
+                started = true;
+            } else if (speed > 0) { // Wait until the packet is due
+                long due = playStart + (long) ((timestamp - firstTimestamp) / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            window.limit(offset + LidarRecorder.RECORD_HEADER_SIZE + length).position(offset + LidarRecorder.RECORD_HEADER_SIZE);
+            decoder.feed(window, timestamp);
+            window.clear();
+            while (decoder.next(packet)) {
+                listener.onPacket(packet);
+                packets++;
+            }
+            position = end;
+        }
+        return packets;
+    }
+
+    private void map(long position) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        windowStart = position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,89 @@
+package com.palyrobotics.sensors;
+
+import com.palyrobotics.metrics.Counter;
+import com.palyrobotics.net.PoseMessage;
+import com.palyrobotics.util.Deskew;
+import com.palyrobotics.util.ICP;
+import com.palyrobotics.util.ICPResult;
+import com.palyrobotics.util.LocalizationWorker;
+import com.palyrobotics.util.PoseListener;
+import com.palyrobotics.util.Revolution;
+import com.palyrobotics.util.RevolutionAssembler;
+import com.palyrobotics.util.ScanFilter;
+import com.palyrobotics.util.Transform;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs revolution assembly and ICP on the lidar's machine and sends every client a {@link PoseMessage} once per
+ * revolution, so a client that only needs to know where the robot is gets tens of bytes a revolution instead of every
+ * scan and doesn't run ICP itself. Packets are assembled on the lidar's worker and ICP runs in a LocalizationWorker,
+ * which always takes the newest revolution and keeps every match within the lidar's revolution period
+ */
+public class PoseEstimator implements LidarPacketListener {
+
+    private final Lidar lidar;
+    private final RevolutionAssembler assembler;
+    private final LocalizationWorker worker;
+    private final List<PoseListener> poseListeners = new CopyOnWriteArrayList<>();
+
+    private final Counter poses;
+    private boolean started;
+
+    /**
+     * @param deskew goes into the filter and gets the velocity from every pose, null to leave revolutions as they are
+     */
+    public PoseEstimator(Lidar lidar, ICP icp, ScanFilter filter, Deskew deskew) {
+        this.lidar = lidar;
+        filter.setDeskew(deskew);
+        this.assembler = new RevolutionAssembler(filter);
+        this.worker = new LocalizationWorker(assembler, icp, deskew, this::publish);
+        worker.setMetrics(lidar.metrics, lidar.metricsPrefix + ".localization");
+        poses = lidar.metrics.counter(lidar.metricsPrefix + ".poses");
+    }
+
+    // Gets every pose after the clients were sent it, on the worker's thread, so a slow listener delays the next match
+    public void addPoseListener(PoseListener listener) {
+        poseListeners.add(listener);
+    }
+
+    public synchronized void start() {
+        if (!started) {
+            started = true;
+            lidar.addPacketListener(this);
+        }
+        worker.start();
+    }
+
+    public void stop() {
+        worker.stop();
+    }
+
+    @Override
+    public void onPacket(LidarPacket packet) {
+        for (int i = 0; i < packet.getSampleQuantity(); i++) {
+            assembler.addSample(packet.getAngle(i), packet.getDistance(i), packet.getTime(i));
+        }
+    }
+
+    private void publish(Revolution revolution, ICPResult result) {
+        Transform transform = result.transform;
+        // Over UDP when the lidar has it, a late pose is worth as little as a late scan
+        lidar.getBroadcaster().broadcast(new PoseMessage(revolution.getId(), revolution.getEndTime(),
+                (float) transform.theta, (float) transform.tx, (float) transform.ty, (float) result.error,
+                result.iterations, result.converged), -1, lidar.hasUDP(), false);
+        poses.increment();
+        for (PoseListener listener : poseListeners) {
+            listener.onPose(revolution, result);
+        }
+    }
+
+    public long getSkippedRevolutions() {
+        return assembler.getSkippedRevolutions();
+    }
+
+    public LocalizationWorker getWorker() {
+        return worker;
+    }
+}
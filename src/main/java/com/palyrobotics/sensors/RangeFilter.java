@@ -0,0 +1,80 @@
+package com.palyrobotics.sensors;
+
+/**
+ * Rejects weak or saturated time of flight readings, then smooths the rest with a moving median (for single bad
+ * readings) followed by an exponential moving average (for noise). Both are off by default.
+ * Not thread safe, it belongs to one sensor
+ */
+public class RangeFilter {
+
+    // The TF-Mini's own limits, under 100 the reading isn't reliable and 65535 means the signal saturated
+    public static final int DEFAULT_MIN_STRENGTH = 100;
+    public static final int SATURATED_STRENGTH = 65535;
+
+    private final int[] window; // The latest readings, a ring
+    private final int[] sorted; // Scratch space for the median
+    private final double smoothing; // Weight of the newest reading, 1 is no smoothing
+    private int minStrength = DEFAULT_MIN_STRENGTH;
+    private int size, next;
+    private double average = -1;
+
+    public RangeFilter() {
+        this(1, 1);
+    }
+
+    /**
+     * @param medianWindow how many readings the median is over, 1 turns it off
+     * @param smoothing    the newest reading's weight in the average, between 0 and 1 where 1 turns it off
+     */
+    public RangeFilter(int medianWindow, double smoothing) {
+        if (medianWindow < 1 || smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("median window " + medianWindow + ", smoothing " + smoothing);
+        }
+        this.window = new int[medianWindow];
+        this.sorted = new int[medianWindow];
+        this.smoothing = smoothing;
+    }
+
+    public void setMinStrength(int minStrength) {
+        this.minStrength = minStrength;
+    }
+
+    public boolean accepts(int distance, int strength) {
+        return distance > 0 && strength >= minStrength && strength != SATURATED_STRENGTH;
+    }
+
+    // Adds an accepted reading and returns the filtered distance
+    public int apply(int distance) {
+        window[next] = distance;
+        next = (next + 1) % window.length;
+        size = Math.min(size + 1, window.length);
+
+        int median = distance;
+        if (size > 1) {
+            System.arraycopy(window, 0, sorted, 0, size); // Order doesn't matter once it is sorted
+            insertionSort(sorted, size); // Windows are a handful of readings
+            median = sorted[size / 2];
+        }
+
+        average = average < 0 ? median : average + (median - average) * smoothing;
+        return (int) Math.round(average);
+    }
+
+    public void reset() {
+        size = 0;
+        next = 0;
+        average = -1;
+    }
+
+    private static void insertionSort(int[] values, int length) {
+        for (int i = 1; i < length; i++) {
+            int value = values[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > value) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.palyrobotics.sensors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RangeFilterTest {
+
+    @Test
+    public void rejectsWeakAndSaturatedReadings() {
+        RangeFilter filter = new RangeFilter();
+        assertTrue(filter.accepts(150, 1000));
+        assertFalse(filter.accepts(150, 20));
+        assertFalse(filter.accepts(150, RangeFilter.SATURATED_STRENGTH));
+        assertFalse(filter.accepts(0, 1000)); // No reading
+    }
+
+    @Test
+    public void medianIgnoresSpikes() {
+        RangeFilter filter = new RangeFilter(3, 1);
+        assertEquals(100, filter.apply(100));
+        filter.apply(101);
+        assertEquals(101, filter.apply(900)); // 100, 101, 900
+        assertEquals(102, filter.apply(102)); // 101, 900, 102
+        assertEquals(103, filter.apply(103)); // The spike never makes it out
+    }
+
+    @Test
+    public void averageSmoothsSteps() {
+        RangeFilter filter = new RangeFilter(1, 0.5);
+        assertEquals(100, filter.apply(100));
+        assertEquals(150, filter.apply(200));
+        assertEquals(175, filter.apply(200));
+        filter.reset();
+        assertEquals(300, filter.apply(300));
+    }
+}
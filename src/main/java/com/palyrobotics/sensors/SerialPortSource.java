@@ -0,0 +1,77 @@
+package com.palyrobotics.sensors;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+
+// A real serial port, data available events come from jSerialComm's event thread for the port
+public class SerialPortSource implements ByteSource {
+
+    private final SerialPort port;
+
+    public SerialPortSource(SerialPort port) {
+        this.port = port;
+    }
+
+    @Override
+    public boolean open() {
+        // Reads only ever happen after the port said data is available, so they never need to wait
+        port.setComPortTimeouts(SerialPort.TIMEOUT_NONBLOCKING, 0, 0);
+        return port.openPort();
+    }
+
+    @Override
+    public void close() {
+        port.closePort();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return port.isOpen();
+    }
+
+    @Override
+    public int bytesAvailable() {
+        return port.bytesAvailable();
+    }
+
+    @Override
+    public int read(byte[] buffer, int length, int offset) {
+        return port.readBytes(buffer, length, offset);
+    }
+
+    @Override
+    public int write(byte[] buffer, int length, int offset) {
+        return port.writeBytes(buffer, length, offset);
+    }
+
+    @Override
+    public void setDataListener(Runnable listener) {
+        port.removeDataListener();
+        if (listener == null) {
+            return;
+        }
+        port.addDataListener(new SerialPortDataListener() {
+            @Override
+            public int getListeningEvents() {
+                return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+            }
+
+            @Override
+            public void serialEvent(SerialPortEvent event) {
+                if (event.getEventType() == SerialPort.LISTENING_EVENT_DATA_AVAILABLE) {
+                    listener.run();
+                }
+            }
+        });
+    }
+
+    @Override
+    public String getName() {
+        return port.getSystemPortName();
+    }
+
+    public SerialPort getPort() {
+        return port;
+    }
+}
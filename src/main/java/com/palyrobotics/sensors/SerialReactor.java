@@ -0,0 +1,90 @@
+package com.palyrobotics.sensors;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every {@link SerialSensor} on a fixed amount of worker threads, however many sensors there are.
+ * jSerialComm still waits for each port's events on a thread of its own (simulated sources have one too), but that
+ * thread only copies bytes into the sensor's inbox, all the parsing and sending happens on the workers
+ */
+public class SerialReactor implements Closeable {
+
+    public static final int DEFAULT_THREADS = 2;
+
+    private static SerialReactor shared;
+
+    private final ExecutorService workers;
+    private final Set<SerialSensor> sensors = ConcurrentHashMap.newKeySet();
+
+    public SerialReactor() {
+        this(DEFAULT_THREADS);
+    }
+
+    public SerialReactor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "SerialReactor-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // The reactor sensors use when they aren't given one, created the first time it is asked for
+    public static synchronized SerialReactor getShared() {
+        if (shared == null) {
+            shared = new SerialReactor();
+        }
+        return shared;
+    }
+
+    void register(SerialSensor sensor) {
+        sensors.add(sensor);
+        sensor.source.setDataListener(sensor::readAvailable);
+    }
+
+    void unregister(SerialSensor sensor) {
+        sensor.source.setDataListener(null);
+        sensors.remove(sensor);
+    }
+
+    // Queues the sensor unless it is already queued or running
+    void schedule(SerialSensor sensor) {
+        if (sensor.isRunning() && sensor.scheduled.compareAndSet(false, true)) {
+            try {
+                workers.execute(sensor);
+            } catch (RejectedExecutionException e) { // Closed
+                sensor.scheduled.set(false);
+            }
+        }
+    }
+
+    public Set<SerialSensor> getSensors() {
+        return Set.copyOf(sensors);
+    }
+
+    /**
+     * Terminates every sensor and waits for the workers to finish what they are running
+     */
+    @Override
+    public void close() {
+        for (SerialSensor sensor : getSensors()) {
+            sensor.terminate();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.palyrobotics.sensors;
+
+import com.esotericsoftware.kryonet.Connection;
+import com.esotericsoftware.kryonet.Listener;
+import com.esotericsoftware.kryonet.Server;
+import com.fazecast.jSerialComm.SerialPort;
+import com.palyrobotics.metrics.MetricRegistry;
+import com.palyrobotics.net.BroadcastSerialization;
+import com.palyrobotics.net.Broadcaster;
+import com.palyrobotics.net.Messages;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A sensor on a serial port (or anything else that is a {@link ByteSource}) that serves its data over a kryonet server.
+ * <p>
+ * Nothing here owns a thread. The source's data available event copies whatever arrived into the sensor's inbox, and the
+ * {@link SerialReactor} then runs the sensor on one of its workers to hand the bytes to {@link #onBytes}.
+ * The inbox is a ring with one writer (the source's event thread) and one reader (whichever worker runs the sensor),
+ * and a sensor is never run on two workers at once, so subclasses don't need to synchronize anything
+ */
+public abstract class SerialSensor implements Sensor {
+
+    private static final int INBOX_SIZE = 1 << 14; // Power of two so wrapping is a mask
+    private static final int INBOX_MASK = INBOX_SIZE - 1;
+    private static final int READS_SIZE = 64; // Reads whose times are kept until their bytes are handled, power of two too
+    private static final int READS_MASK = READS_SIZE - 1;
+
+    protected final Server server;
+    private final Broadcaster broadcaster;
+    private final String portDescription;
+    private final int baudRate;
+    private final int tcpPort;
+    private final int udpPort; // 0 if there is no UDP
+    private final SerialReactor reactor;
+    protected final MetricRegistry metrics = MetricRegistry.getShared();
+    protected final String metricsPrefix; // Like lidar.5807, the tcp port tells sensors of the same kind apart
+    protected ByteSource source;
+    protected volatile boolean running;
+
+    private final byte[] inbox = new byte[INBOX_SIZE];
+    private final byte[] discard = new byte[1024];
+    private volatile long written; // Event thread
+    private volatile long taken; // Worker
+    private volatile long lastRead; // System.nanoTime() of the latest read
+    // Where every read ended in the inbox and when it happened, so bytes that waited in the inbox keep their own read's time
+    private final long[] readEnds = new long[READS_SIZE];
+    private final long[] readTimes = new long[READS_SIZE];
+    private volatile long reads; // Event thread
+    private volatile long readsTaken; // Worker
+    private volatile long droppedBytes; // Event thread, bytes that came in while the inbox was full
+    final AtomicBoolean scheduled = new AtomicBoolean(); // Set while the sensor is queued or running on a worker
+
+    protected SerialSensor(String portDescription, int baudRate, int tcpPort, SerialReactor reactor) {
+        this(portDescription, baudRate, tcpPort, 0, reactor);
+    }
+
+    protected SerialSensor(String portDescription, int baudRate, int tcpPort, int udpPort, SerialReactor reactor) {
+        this(null, portDescription, baudRate, tcpPort, udpPort, reactor);
+    }
+
+    // For sources that aren't found by name, like simulated devices
+    protected SerialSensor(ByteSource source, int tcpPort, int udpPort, SerialReactor reactor) {
+        this(source, source.getName(), 0, tcpPort, udpPort, reactor);
+    }
+
+    private SerialSensor(ByteSource source, String portDescription, int baudRate, int tcpPort, int udpPort, SerialReactor reactor) {
+        this.source = source;
+        this.portDescription = portDescription;
+        this.baudRate = baudRate;
+        this.tcpPort = tcpPort;
+        this.udpPort = udpPort;
+        this.reactor = reactor;
+        this.server = new Server(Messages.WRITE_BUFFER_SIZE, Messages.OBJECT_BUFFER_SIZE, new BroadcastSerialization());
+        this.broadcaster = new Broadcaster(server);
+        this.metricsPrefix = getName().toLowerCase() + "." + tcpPort;
+        broadcaster.setMetrics(metrics, metricsPrefix + ".net");
+        metrics.gauge(metricsPrefix + ".dropped_bytes", () -> droppedBytes);
+
+        openPort();
+        setUpServer();
+    }
+
+    private void setUpServer() {
+        server.start();
+        Messages.register(server.getKryo());
+        server.addListener(new Listener() {
+            @Override
+            public void connected(Connection connection) {
+                System.out.println("Connected");
+            }
+
+            @Override
+            public void disconnected(Connection connection) {
+                System.out.println("Disconnected");
+            }
+        });
+        try {
+            if (udpPort > 0) {
+                server.bind(tcpPort, udpPort);
+            } else {
+                server.bind(tcpPort);
+            }
+        } catch (IOException connectException) {
+            connectException.printStackTrace();
+        }
+    }
+
+    public boolean openPort() {
+        if (source == null) {
+            SerialPort[] ports = SerialPort.getCommPorts();
+            for (var p : ports) {
+                if (matches(p, portDescription)) {
+                    p.setBaudRate(baudRate);
+                    configurePort(p);
+                    source = new SerialPortSource(p);
+                    break;
+                }
+            }
+            if (source == null) {
+                return false;
+            }
+        }
+        return source.isOpen() || source.open();
+    }
+
+    protected boolean matches(SerialPort port, String description) {
+        return port.getSystemPortName().equals(description);
+    }
+
+    // Anything on top of the baud rate, called before the port is opened
+    protected void configurePort(SerialPort port) {
+    }
+
+    // Called once the source is open, before any data is handled
+    protected void onStart() {
+    }
+
+    // Called before the source gets closed
+    protected void onStop() {
+    }
+
+    /**
+     * Everything that came in since the last call, in order, one call per read. The array is the sensor's inbox, so copy
+     * what needs to be kept
+     *
+     * @param timestamp System.nanoTime() of the read the bytes came from
+     */
+    protected abstract void onBytes(byte[] bytes, int offset, int length, long timestamp);
+
+    @Override
+    public void init() {
+        if (!openPort()) {
+            System.err.println("Could not find a port for " + getName() + " (" + portDescription + ")");
+            return;
+        }
+        if (running) {
+            return;
+        }
+        running = true;
+        onStart();
+        reactor.register(this);
+    }
+
+    @Override
+    public void terminate() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        reactor.unregister(this);
+        onStop();
+        source.close();
+        server.stop();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public ByteSource getSource() {
+        return source;
+    }
+
+    // Runs on the source's event thread, copies everything that is available into the inbox
+    void readAvailable() {
+        int available = source.bytesAvailable();
+        while (available > 0) {
+            long w = written;
+            int free = INBOX_SIZE - (int) (w - taken);
+            int read;
+            if (free == 0) { // The workers are behind, throw the bytes away so the source does not keep firing events
+                read = source.read(discard, Math.min(available, discard.length), 0);
+                if (read > 0) {
+                    droppedBytes += read;
+                }
+            } else {
+                int offset = (int) (w & INBOX_MASK);
+                read = source.read(inbox, Math.min(available, Math.min(free, INBOX_SIZE - offset)), offset);
+                if (read > 0) {
+                    long now = System.nanoTime();
+                    lastRead = now;
+                    long r = reads;
+                    if (r - readsTaken < READS_SIZE) { // Otherwise these bytes get the time of a later read
+                        readEnds[(int) (r & READS_MASK)] = w + read;
+                        readTimes[(int) (r & READS_MASK)] = now;
+                        reads = r + 1;
+                    }
+                    written = w + read;
+                }
+            }
+            if (read <= 0) {
+                break;
+            }
+            available -= read;
+        }
+        reactor.schedule(this);
+    }
+
+    // Runs on a reactor worker, hands everything in the inbox to onBytes
+    @Override
+    public void run() {
+        do {
+            long t = taken, w = written, r = reads; // Reads are recorded before written moves, so every byte up to w has one
+            long rt = readsTaken;
+            while (t < w && running) {
+                while (rt < r && readEnds[(int) (rt & READS_MASK)] <= t) {
+                    rt++;
+                }
+                readsTaken = rt;
+                // Up to the end of the read these bytes came in with, the latest read's time if it wasn't kept
+                long end = rt < r ? Math.min(w, readEnds[(int) (rt & READS_MASK)]) : w;
+                long time = rt < r ? readTimes[(int) (rt & READS_MASK)] : lastRead;
+                int offset = (int) (t & INBOX_MASK);
+                int length = (int) Math.min(end - t, INBOX_SIZE - offset);
+                onBytes(inbox, offset, length, time);
+                t += length;
+                taken = t;
+            }
+            scheduled.set(false);
+            // Bytes that came in after the check above would have found the sensor still scheduled, so look again
+        } while (running && written != taken && scheduled.compareAndSet(false, true));
+    }
+
+    protected void send(Object msg) {
+        send(msg, -1, false);
+    }
+
+    /**
+     * Sends to every client, over UDP to the ones that connected with UDP when udp is set and this sensor has a UDP port.
+     * UDP is for data that is worthless once it is late, it can get lost or come out of order
+     *
+     * @param revolution what the LATEST_REVOLUTION policy goes by, -1 if the message isn't part of a revolution
+     */
+    protected void send(Object msg, int revolution, boolean udp) {
+        broadcaster.broadcast(msg, revolution, udp && udpPort > 0);
+    }
+
+    // Clients that fall behind are handled by the broadcaster's policy, DROP_OLDEST unless it is changed here
+    public Broadcaster getBroadcaster() {
+        return broadcaster;
+    }
+
+    public boolean hasUDP() {
+        return udpPort > 0;
+    }
+}
@@ -1,133 +1,180 @@
 package com.palyrobotics.sensors;
 
-import com.esotericsoftware.kryonet.Connection;
-import com.esotericsoftware.kryonet.Listener;
-import com.esotericsoftware.kryonet.Server;
-import com.fazecast.jSerialComm.SerialPort;
+import com.palyrobotics.net.RangeBatch;
 
-import java.io.IOException;
+import java.util.Arrays;
 
-public class TimeOfFlightSensor implements Sensor {
+/**
+ * A TF-Mini style time of flight sensor. Frames are checked, filtered by a {@link RangeFilter} and sent as
+ * {@link RangeBatch}es at the output rate, so clients get a few messages a second per sensor instead of one per frame
+ */
+public class TimeOfFlightSensor extends SerialSensor {
 
-    static final int TIMEOUT = 10000;
+    static final int BAUD_RATE = 115200;
+    static final int HEADER = 0x59;
+    static final int FRAME_SIZE = 9;
 
-    private final String portSystemName;
-    private SerialPort port;
-    private boolean running;
-    private Server server;
-    private final int tcpPort;
+    public static final double DEFAULT_OUTPUT_RATE = 20; // Batches per second
+    private static final int MAX_BATCH = 256; // Sent early if this many readings pile up
+
+    private final byte[] frame = new byte[FRAME_SIZE]; // The frame being read, kept between calls since frames get split across reads
+    private int frameSize;
+    private volatile int distance = -1;
+    private volatile int strength = -1;
+
+    // Only touched from onBytes, so by one worker at a time
+    private RangeFilter filter = new RangeFilter();
+    private final int[] batchDistances = new int[MAX_BATCH];
+    private final int[] batchStrengths = new int[MAX_BATCH];
+    private int batchSize;
+    private long batchStart = -1; // System.nanoTime() the current batch started at
+    private long sequence;
+    private volatile long outputPeriod = (long) (1e9 / DEFAULT_OUTPUT_RATE); // ns, 0 sends every reading
+    private volatile boolean decimate; // Only send the newest reading of every batch
+
+    private volatile long frames, checksumFailures, rejected;
 
     public TimeOfFlightSensor(String portSystemName, int tcpPort)  {
-        this.portSystemName = portSystemName;
-        this.running = false;
-        this.server = new Server();
-        this.tcpPort = tcpPort;
+        this(portSystemName, tcpPort, SerialReactor.getShared());
+    }
 
-        setUpServer();
-        verifyPort();
+    public TimeOfFlightSensor(String portSystemName, int tcpPort, SerialReactor reactor)  {
+        super(portSystemName, BAUD_RATE, tcpPort, reactor);
+        registerGauges();
     }
 
-    private void setUpServer() { // TODO: maybe make Sensor an abstract class with this as it is similar to KumquatVision
-        server.start();
-        server.addListener(new Listener() {
-            @Override
-            public void connected(Connection connection) {
-                System.out.println("Connected");
-            }
+    public TimeOfFlightSensor(ByteSource source, int tcpPort, SerialReactor reactor)  {
+        super(source, tcpPort, 0, reactor);
+        registerGauges();
+    }
 
-            @Override
-            public void disconnected(Connection connection) {
-                System.out.println("Disconnected");
+    private void registerGauges() {
+        metrics.gauge(metricsPrefix + ".frames", () -> frames);
+        metrics.gauge(metricsPrefix + ".checksum_failures", () -> checksumFailures);
+        metrics.gauge(metricsPrefix + ".rejected", () -> rejected);
+        metrics.gauge(metricsPrefix + ".distance", () -> distance);
+    }
+
+    @Override
+    public String getName() {
+        return "TimeOfFlightSensor";
+    }
+
+    // Set before init, the filter isn't shared with the worker safely otherwise
+    public void setFilter(RangeFilter filter) {
+        this.filter = filter;
+    }
+
+    // Batches per second, 0 sends every reading on its own
+    public void setOutputRate(double rate) {
+        this.outputPeriod = rate > 0 ? (long) (1e9 / rate) : 0;
+    }
+
+    public void setDecimate(boolean decimate) {
+        this.decimate = decimate;
+    }
+
+    @Override
+    protected void onBytes(byte[] bytes, int offset, int length, long timestamp) {
+        if (batchStart < 0) {
+            batchStart = timestamp;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            int b = bytes[i] & 0xFF;
+            if (frameSize < 2 && b != HEADER) { // Continue reading until both package headers are read
+                frameSize = 0;
+                continue;
             }
-        });
-        try {
-            server.bind(tcpPort);
-        } catch (IOException connectException) {
-            connectException.printStackTrace();
+            frame[frameSize++] = (byte) b;
+            if (frameSize == FRAME_SIZE) {
+                frameSize = 0;
+                handleFrame(timestamp);
+            }
+        }
+        if (batchSize > 0 && timestamp - batchStart >= outputPeriod) {
+            sendBatch(timestamp);
         }
     }
 
-    public boolean verifyPort() {
-        if (port != null) {
-            return true;
+    private void handleFrame(long timestamp) { // See, I do sometimes write comments in my code :)
+        // Each 9 byte data package has 2 headers (both 0x59), distance and strength (2 bytes each, little endian),
+        // mode, a spare byte and a checksum
+        frames++;
+        if (!validCheckSum(frame)) {
+            checksumFailures++;
+            resync();
+            return;
         }
 
-        SerialPort[] ports = SerialPort.getCommPorts();
-        for (var p : ports) {
-            if (p.getSystemPortName().equals(portSystemName)) {
-                port = p;
-                port.setBaudRate(115200);
-                port.openPort();
-                port.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, TIMEOUT, TIMEOUT); // TODO: Find out if timeout is in secs
-                return true;
-            }
+        int distance = (frame[2] & 0xFF) + 256 * (frame[3] & 0xFF);
+        int strength = (frame[4] & 0xFF) + 256 * (frame[5] & 0xFF);
+        if (!filter.accepts(distance, strength)) {
+            rejected++;
+            return;
+        }
+
+        distance = filter.apply(distance);
+        this.distance = distance;
+        this.strength = strength;
+
+        if (decimate) {
+            batchSize = 0; // Only the newest one is kept
+        }
+        batchDistances[batchSize] = distance;
+        batchStrengths[batchSize] = strength;
+        batchSize++;
+        if (batchSize == MAX_BATCH) {
+            sendBatch(timestamp);
         }
-        return false;
     }
 
-    @Override
-    public void init() {
-        verifyPort();
+    // The checksum is the low 8 bits of the sum of the first 8 bytes
+    static boolean validCheckSum(byte[] frame) {
+        int sum = 0;
+        for (int i = 0; i < FRAME_SIZE - 1; i++) {
+            sum += frame[i] & 0xFF;
+        }
+        return (sum & 0xFF) == (frame[FRAME_SIZE - 1] & 0xFF);
+    }
 
-        if (port != null && !running) {
-            new Thread(this).start();
+    // The headers were probably part of a distance or strength, start again from the next pair of headers in the frame
+    private void resync() {
+        for (int i = 1; i < FRAME_SIZE; i++) {
+            if (frame[i] == (byte) HEADER && (i == FRAME_SIZE - 1 || frame[i + 1] == (byte) HEADER)) {
+                frameSize = FRAME_SIZE - i;
+                System.arraycopy(frame, i, frame, 0, frameSize);
+                return;
+            }
         }
     }
 
-    @Override
-    public void terminate() {
-        port.closePort(); // Should generate and error for the thread and close it
+    private void sendBatch(long timestamp) {
+        float interval = (timestamp - batchStart) / 1e9f / (decimate ? 1 : batchSize);
+        send(new RangeBatch(sequence++, interval,
+                Arrays.copyOf(batchDistances, batchSize), Arrays.copyOf(batchStrengths, batchSize)));
+        batchSize = 0;
+        batchStart = timestamp;
     }
 
-    @Override
-    public String getName() {
-        return "TimeOfFlightSensor";
+    // The latest filtered distance in cm, -1 until the first good frame comes in
+    public int getDistance() {
+        return distance;
     }
 
-    @Override
-    public void run() {
-        running = true;
+    public int getStrength() {
+        return strength;
+    }
 
-        while (port.isOpen()) {
-            int distance = getDistance();
-            server.sendToAllTCP(distance); // TODO: determine if TCP or UDP is better in this scenario
-        }
+    public long getFrames() {
+        return frames;
     }
 
-    public int getDistance() { // See, I do sometimes write comments in my code :)
-        var stream = port.getInputStream();
-
-        while (true) { // I believe the port or the InputStream will throw an error if it does not work and the loop will be broken because of that
-            try {
-                // Each 9 byte data package has 2 headers (both 0x59) followed by 2 bytes representing the distance
-                int header = stream.read();
-                while (header != 0x59) { // Continue reading until the package header is read
-                    header = stream.read();
-                }
-                header = stream.read();
-                if (header != 0x59) { // Make sure the next byte is also a header
-                    continue;
-                }
-
-                int sum = 0; // TODO: CheckSum is the low 8 bits of the cumulative sum of the numbers of the first 8 bytes.
-
-                // Finds the distance from the next 2 bytes
-                int distance = stream.read();
-                distance = distance + 256 * stream.read();
-
-                int strength = stream.read();
-                strength = strength + 256 * stream.read();
-                int mode = stream.read();
-                int spare = stream.read();
-                int checkSum = stream.read();
-
-                return distance;
-            } catch (IOException e) {
-                e.printStackTrace();
-                break;
-            }
-        }
+    public long getChecksumFailures() {
+        return checksumFailures;
+    }
 
-        return -1;
+    // Frames with a good checksum that the filter threw out for their strength
+    public long getRejected() {
+        return rejected;
     }
 }
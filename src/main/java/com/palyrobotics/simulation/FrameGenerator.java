@@ -0,0 +1,19 @@
+package com.palyrobotics.simulation;
+
+import java.nio.ByteBuffer;
+
+// A simulated device, writes the frames that a SimulatedSource sends at a fixed rate
+public interface FrameGenerator {
+
+    /**
+     * Writes the next frame at the buffer's position
+     *
+     * @param time seconds since the simulation started
+     */
+    void generate(ByteBuffer out, double time);
+
+    // Seconds between two frames
+    double getFrameInterval();
+
+    int getMaxFrameSize();
+}
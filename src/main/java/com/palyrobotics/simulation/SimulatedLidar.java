@@ -0,0 +1,98 @@
+package com.palyrobotics.simulation;
+
+import com.palyrobotics.sensors.LidarPacket;
+import com.palyrobotics.sensors.LidarPacketEncoder;
+import com.palyrobotics.util.SegmentMap;
+import com.palyrobotics.util.Transform;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Sends 0x55AA packets like the real lidar, with distances ray cast against a map from wherever the trajectory is.
+ * Every revolution starts with a packet that has bit 0 of the package type set, and packets never span two revolutions.
+ * The pose is taken once per packet, so a moving robot smears the revolution the same way it does with the real lidar
+ */
+public class SimulatedLidar implements FrameGenerator {
+
+    // Close to the real lidar, about 5000 samples a second
+    public static final int DEFAULT_SAMPLES_PER_REVOLUTION = 720;
+    public static final double DEFAULT_REVOLUTIONS_PER_SECOND = 7;
+    public static final int DEFAULT_SAMPLES_PER_PACKET = 40;
+
+    public static final double MAX_RANGE = 16000; // Distances are sent in quarter mm in 2 bytes
+
+    private final SegmentMap map;
+    private final Trajectory trajectory;
+    private final int samplesPerRevolution;
+    private final int samplesPerPacket;
+    private final int packetsPerRevolution;
+    private final double revolutionsPerSecond;
+    private final Random random;
+
+    private double noise; // Standard deviation of the distance in mm
+    private double dropoutRate; // Chance of a sample coming back as 0, what the lidar sends when it sees nothing
+
+    private final float[] distances;
+    private long packets;
+
+    public SimulatedLidar(SegmentMap map, Trajectory trajectory) {
+        this(map, trajectory, DEFAULT_SAMPLES_PER_REVOLUTION, DEFAULT_REVOLUTIONS_PER_SECOND, DEFAULT_SAMPLES_PER_PACKET, 0);
+    }
+
+    public SimulatedLidar(SegmentMap map, Trajectory trajectory, int samplesPerRevolution, double revolutionsPerSecond,
+                          int samplesPerPacket, long seed) {
+        if (samplesPerPacket < 1 || samplesPerPacket > LidarPacket.MAX_SAMPLES) {
+            throw new IllegalArgumentException("Packets hold 1 to " + LidarPacket.MAX_SAMPLES + " samples, not " + samplesPerPacket);
+        }
+        this.map = map;
+        this.trajectory = trajectory;
+        this.samplesPerRevolution = samplesPerRevolution;
+        this.samplesPerPacket = samplesPerPacket;
+        this.packetsPerRevolution = (samplesPerRevolution + samplesPerPacket - 1) / samplesPerPacket;
+        this.revolutionsPerSecond = revolutionsPerSecond;
+        this.random = new Random(seed);
+        this.distances = new float[samplesPerPacket];
+    }
+
+    public void setNoise(double noise) {
+        this.noise = noise;
+    }
+
+    public void setDropoutRate(double dropoutRate) {
+        this.dropoutRate = dropoutRate;
+    }
+
+    @Override
+    public void generate(ByteBuffer out, double time) {
+        int packet = (int) (packets++ % packetsPerRevolution);
+        int first = packet * samplesPerPacket;
+        int count = Math.min(samplesPerPacket, samplesPerRevolution - first);
+        double step = 360.0 / samplesPerRevolution;
+
+        Transform pose = trajectory.poseAt(time);
+        for (int i = 0; i < count; i++) {
+            double angle = pose.theta + Math.toRadians((first + i) * step);
+            double distance = map.raycast(pose.tx, pose.ty, angle);
+            if (distance > MAX_RANGE || (dropoutRate > 0 && random.nextDouble() < dropoutRate)) {
+                distance = 0;
+            } else if (noise > 0) {
+                distance = Math.max(0, distance + random.nextGaussian() * noise);
+            }
+            distances[i] = (float) distance;
+        }
+
+        float start = (float) (first * step);
+        LidarPacketEncoder.encode(out, packet == 0 ? 1 : 0, start, (float) (start + count * step), distances, count);
+    }
+
+    @Override
+    public double getFrameInterval() {
+        return 1 / (revolutionsPerSecond * packetsPerRevolution);
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return 10 + 2 * samplesPerPacket; // 10 byte header and 2 bytes a sample
+    }
+}
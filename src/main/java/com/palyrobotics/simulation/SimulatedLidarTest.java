@@ -0,0 +1,72 @@
+package com.palyrobotics.simulation;
+
+import com.palyrobotics.sensors.LidarPacket;
+import com.palyrobotics.sensors.LidarPacketDecoder;
+import com.palyrobotics.util.Point;
+import com.palyrobotics.util.Segment;
+import com.palyrobotics.util.SegmentMap;
+import com.palyrobotics.util.Transform;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SimulatedLidarTest {
+
+    // A 4m square room centered on the origin
+    private static SegmentMap room() {
+        Point a = new Point(-2000, -2000), b = new Point(2000, -2000), c = new Point(2000, 2000), d = new Point(-2000, 2000);
+        return new SegmentMap(List.of(new Segment(a, b), new Segment(b, c), new Segment(c, d), new Segment(d, a)));
+    }
+
+    @Test
+    public void packetsDecodeToTheRoom() {
+        Trajectory trajectory = new Trajectory(new Transform(0, 500, 0)); // 1.5m from the wall in front, 2.5m from the one behind
+        SimulatedLidar lidar = new SimulatedLidar(room(), trajectory, 360, 7, 40, 0);
+
+        ByteBuffer bytes = ByteBuffer.allocate(9 * lidar.getMaxFrameSize());
+        for (int i = 0; i < 9; i++) {
+            lidar.generate(bytes, i * lidar.getFrameInterval());
+        }
+
+        LidarPacketDecoder decoder = new LidarPacketDecoder();
+        LidarPacket packet = new LidarPacket();
+        decoder.feed(bytes.array(), 0, bytes.position());
+        float[] revolution = new float[360];
+        int samples = 0;
+        while (decoder.next(packet)) {
+            assertEquals(samples == 0, packet.isRevolutionStart());
+            for (int i = 0; i < packet.getSampleQuantity(); i++) {
+                revolution[Math.round(packet.getAngle(i))] = packet.getDistance(i);
+                samples++;
+            }
+        }
+
+        assertEquals(360, samples);
+        assertEquals(0, decoder.getChecksumFailures());
+        assertEquals(1500, revolution[0], 0.5);
+        assertEquals(2000, revolution[90], 0.5);
+        assertEquals(2500, revolution[180], 0.5);
+    }
+
+    @Test
+    public void timeOfFlightFramesHaveValidCheckSums() {
+        Trajectory trajectory = new Trajectory(new Transform(Math.PI / 2, 0, 0)); // Facing +y
+        SimulatedTimeOfFlight sensor = new SimulatedTimeOfFlight(room(), trajectory, 100, 0, 0);
+
+        ByteBuffer frame = ByteBuffer.allocate(sensor.getMaxFrameSize());
+        sensor.generate(frame, 0);
+        byte[] bytes = frame.array();
+
+        assertEquals(0x59, bytes[0] & 0xFF);
+        assertEquals(0x59, bytes[1] & 0xFF);
+        assertEquals(190, (bytes[2] & 0xFF) + 256 * (bytes[3] & 0xFF)); // Mounted 10cm in front of the center
+        int sum = 0;
+        for (int i = 0; i < 8; i++) {
+            sum += bytes[i] & 0xFF;
+        }
+        assertEquals(sum & 0xFF, bytes[8] & 0xFF);
+    }
+}
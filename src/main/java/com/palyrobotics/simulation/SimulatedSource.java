@@ -0,0 +1,198 @@
+package com.palyrobotics.simulation;
+
+import com.palyrobotics.sensors.ByteSource;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link ByteSource} that a {@link FrameGenerator} writes into at the generator's frame rate, on a thread of its own
+ * like jSerialComm's event thread. Bytes can be lost or corrupted on the way to test how the decoders resync.
+ * <p>
+ * Frames are only generated while something listens, so a sensor that is not running yet does not get a backlog.
+ * The simulation time keeps counting frames though, so pausing does not make the trajectory jump
+ */
+public class SimulatedSource implements ByteSource {
+
+    private static final int BUFFER_SIZE = 1 << 16; // About as much as a UART driver buffers
+    private static final int MAX_FRAMES_PER_BATCH = 64; // Notify at least this often when the thread fell behind
+    private static final long PAUSED_POLL = 1000000; // 1ms
+
+    private final String name;
+    private final FrameGenerator generator;
+    private final Random random;
+
+    private double corruptionRate; // Chance of a bit flip in every byte
+    private double lossRate; // Chance of every byte getting lost
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    // Guarded by this
+    private int head, size;
+    private long overflowedBytes, lostBytes, corruptedBytes;
+
+    private volatile Runnable listener;
+    private volatile boolean open;
+    private volatile long frames; // Generated so far, frames * interval is the simulation time
+    private Thread thread;
+
+    public SimulatedSource(String name, FrameGenerator generator) {
+        this(name, generator, 0);
+    }
+
+    public SimulatedSource(String name, FrameGenerator generator, long seed) {
+        this.name = name;
+        this.generator = generator;
+        this.random = new Random(seed);
+    }
+
+    public void setCorruptionRate(double corruptionRate) {
+        this.corruptionRate = corruptionRate;
+    }
+
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    @Override
+    public synchronized boolean open() {
+        if (open) {
+            return true;
+        }
+        open = true;
+        thread = new Thread(this::generate, "SimulatedSource-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            thread = this.thread;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized int bytesAvailable() {
+        return size;
+    }
+
+    @Override
+    public synchronized int read(byte[] destination, int length, int offset) {
+        if (!open) {
+            return -1;
+        }
+        int read = Math.min(length, size);
+        int first = Math.min(read, BUFFER_SIZE - head);
+        System.arraycopy(buffer, head, destination, offset, first);
+        System.arraycopy(buffer, 0, destination, offset + first, read - first);
+        head = (head + read) % BUFFER_SIZE;
+        size -= read;
+        return read;
+    }
+
+    // Commands like starting the lidar's motor are ignored, the simulated devices always run
+    @Override
+    public int write(byte[] bytes, int length, int offset) {
+        return open ? length : -1;
+    }
+
+    @Override
+    public void setDataListener(Runnable listener) {
+        this.listener = listener;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private void generate() {
+        final long interval = (long) (generator.getFrameInterval() * 1e9);
+        final ByteBuffer frame = ByteBuffer.allocate(generator.getMaxFrameSize());
+        long start = System.nanoTime(), paced = 0; // Frames since start, the pacing restarts after a pause
+        while (open) {
+            Runnable listener = this.listener;
+            if (listener == null) {
+                LockSupport.parkNanos(PAUSED_POLL);
+                start = System.nanoTime();
+                paced = 0;
+                continue;
+            }
+
+            long wait = start + paced * interval - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+
+            // Everything that is due goes out in one batch, the same as a read that picks up several frames
+            int batch = 0;
+            do {
+                frame.clear();
+                generator.generate(frame, frames * generator.getFrameInterval());
+                frames++;
+                paced++;
+                append(frame.array(), frame.position());
+            } while (++batch < MAX_FRAMES_PER_BATCH && start + paced * interval <= System.nanoTime());
+            listener.run();
+        }
+    }
+
+    private void append(byte[] bytes, int length) {
+        synchronized (this) {
+            for (int i = 0; i < length; i++) {
+                if (lossRate > 0 && random.nextDouble() < lossRate) {
+                    lostBytes++;
+                    continue;
+                }
+                byte b = bytes[i];
+                if (corruptionRate > 0 && random.nextDouble() < corruptionRate) {
+                    b ^= 1 << random.nextInt(8);
+                    corruptedBytes++;
+                }
+                if (size == BUFFER_SIZE) { // Like a UART overrun, the newest bytes are lost
+                    overflowedBytes++;
+                    continue;
+                }
+                buffer[(head + size) % BUFFER_SIZE] = b;
+                size++;
+            }
+        }
+    }
+
+    // Seconds of simulated time that have been generated
+    public double getTime() {
+        return frames * generator.getFrameInterval();
+    }
+
+    public synchronized long getOverflowedBytes() {
+        return overflowedBytes;
+    }
+
+    public synchronized long getLostBytes() {
+        return lostBytes;
+    }
+
+    public synchronized long getCorruptedBytes() {
+        return corruptedBytes;
+    }
+}
@@ -0,0 +1,92 @@
+package com.palyrobotics.simulation;
+
+import com.palyrobotics.util.SegmentMap;
+import com.palyrobotics.util.Transform;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Sends the time of flight sensor's 9 byte frames: two 0x59 headers, distance in cm and strength (2B each, little endian),
+ * mode, a spare byte and the low 8 bits of the sum of the first 8 bytes. The distance is ray cast against the map from
+ * where the sensor is mounted on the robot
+ */
+public class SimulatedTimeOfFlight implements FrameGenerator {
+
+    public static final double DEFAULT_FRAMES_PER_SECOND = 100;
+    public static final int FRAME_SIZE = 9;
+    public static final double MAX_RANGE = 12000; // mm
+
+    private static final int STRENGTH = 1000; // Anything over 100 is a reading the sensor trusts
+
+    private final SegmentMap map;
+    private final Trajectory trajectory;
+    private final double mountX, mountY, mountAngle; // In the robot's frame, the angle in radians
+    private final double framesPerSecond;
+    private final Random random;
+
+    private double noise; // Standard deviation of the distance in mm
+    private double dropoutRate; // Chance of a frame with no distance and no strength
+
+    public SimulatedTimeOfFlight(SegmentMap map, Trajectory trajectory, double mountX, double mountY, double mountAngle) {
+        this(map, trajectory, mountX, mountY, mountAngle, DEFAULT_FRAMES_PER_SECOND, 0);
+    }
+
+    public SimulatedTimeOfFlight(SegmentMap map, Trajectory trajectory, double mountX, double mountY, double mountAngle,
+                                 double framesPerSecond, long seed) {
+        this.map = map;
+        this.trajectory = trajectory;
+        this.mountX = mountX;
+        this.mountY = mountY;
+        this.mountAngle = mountAngle;
+        this.framesPerSecond = framesPerSecond;
+        this.random = new Random(seed);
+    }
+
+    public void setNoise(double noise) {
+        this.noise = noise;
+    }
+
+    public void setDropoutRate(double dropoutRate) {
+        this.dropoutRate = dropoutRate;
+    }
+
+    @Override
+    public void generate(ByteBuffer out, double time) {
+        Transform pose = trajectory.poseAt(time);
+        double x = pose.tx + mountX * Math.cos(pose.theta) - mountY * Math.sin(pose.theta);
+        double y = pose.ty + mountX * Math.sin(pose.theta) + mountY * Math.cos(pose.theta);
+        double distance = map.raycast(x, y, pose.theta + mountAngle);
+
+        int centimeters = 0, strength = 0;
+        if (distance <= MAX_RANGE && !(dropoutRate > 0 && random.nextDouble() < dropoutRate)) {
+            if (noise > 0) {
+                distance += random.nextGaussian() * noise;
+            }
+            centimeters = (int) Math.max(0, Math.round(distance / 10));
+            strength = STRENGTH;
+        }
+
+        int start = out.position();
+        out.put((byte) 0x59).put((byte) 0x59)
+                .put((byte) centimeters).put((byte) (centimeters >> 8))
+                .put((byte) strength).put((byte) (strength >> 8))
+                .put((byte) 0) // Mode
+                .put((byte) 0); // Spare
+        int sum = 0;
+        for (int i = start; i < start + FRAME_SIZE - 1; i++) {
+            sum += out.get(i) & 0xFF;
+        }
+        out.put((byte) sum);
+    }
+
+    @Override
+    public double getFrameInterval() {
+        return 1 / framesPerSecond;
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return FRAME_SIZE;
+    }
+}
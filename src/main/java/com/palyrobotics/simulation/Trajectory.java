@@ -0,0 +1,93 @@
+package com.palyrobotics.simulation;
+
+import com.palyrobotics.util.Transform;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the simulated robot is over time, linearly interpolated between waypoints.
+ * Waypoints are poses in the map, the transform from the robot's frame into the map's. {@link #at} gives the inverse,
+ * which is what ICP should come up with when the map is the reference
+ */
+public class Trajectory {
+
+    private final double[] times;
+    private final Transform[] poses;
+    private final boolean loop;
+
+    // Stays at the pose forever
+    public Trajectory(Transform pose) {
+        this(new double[] {0}, new Transform[] {pose}, false);
+    }
+
+    public Trajectory(double[] times, Transform[] poses, boolean loop) {
+        if (times.length == 0 || times.length != poses.length) {
+            throw new IllegalArgumentException("A trajectory needs the same amount of times and poses, and at least one");
+        }
+        for (int i = 1; i < times.length; i++) {
+            if (times[i] <= times[i - 1]) {
+                throw new IllegalArgumentException("Trajectory times have to be increasing");
+            }
+        }
+        this.times = times;
+        this.poses = poses;
+        this.loop = loop;
+    }
+
+    // Every line is a waypoint as seconds,x,y,heading with the heading in degrees
+    public static Trajectory load(String file, boolean loop) throws IOException {
+        List<Double> times = new ArrayList<>();
+        List<Transform> poses = new ArrayList<>();
+        try (BufferedReader bf = new BufferedReader(new FileReader(file))) {
+            while (true) {
+                String line = bf.readLine();
+                if (line == null) {
+                    break;
+                }
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+
+                var split = line.split(",");
+                times.add(Double.parseDouble(split[0]));
+                poses.add(new Transform(Math.toRadians(Double.parseDouble(split[3])),
+                        Double.parseDouble(split[1]), Double.parseDouble(split[2])));
+            }
+        }
+        return new Trajectory(times.stream().mapToDouble(Double::doubleValue).toArray(), poses.toArray(new Transform[0]), loop);
+    }
+
+    // The robot's pose in the map at the time
+    public Transform poseAt(double time) {
+        int last = times.length - 1;
+        if (loop && last > 0) {
+            double duration = times[last] - times[0];
+            time = times[0] + ((time - times[0]) % duration + duration) % duration;
+        }
+        if (time <= times[0]) {
+            return poses[0];
+        }
+        if (time >= times[last]) {
+            return poses[last];
+        }
+
+        int i = 1;
+        while (times[i] < time) {
+            i++;
+        }
+        double t = (time - times[i - 1]) / (times[i] - times[i - 1]);
+        Transform from = poses[i - 1], to = poses[i];
+        return new Transform(from.theta + (to.theta - from.theta) * t,
+                from.tx + (to.tx - from.tx) * t,
+                from.ty + (to.ty - from.ty) * t);
+    }
+
+    // The transform from the map into the robot's frame, what ICP should find
+    public Transform at(double time) {
+        return poseAt(time).inverse();
+    }
+}
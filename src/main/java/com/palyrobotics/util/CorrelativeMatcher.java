@@ -0,0 +1,298 @@
+package com.palyrobotics.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+/**
+ * Finds where a scan is in a reference without a starting guess, for when ICP is lost. Every pose in the reference's
+ * bounds is scored by how close the scan's points land to reference points, which would be far too many poses to try
+ * one by one, so it branch and bounds (Hess et al., Real-Time Loop Closure in 2D LIDAR SLAM):
+ * <p>
+ * The score grid is max pooled into coarser grids, where a cell holds the best score of the 2^level by 2^level cells
+ * starting at it. Scoring a scan against level h gives an upper bound for every translation in a 2^h cell square, so
+ * whole squares whose bound is below the best pose found so far are never looked at. Rotations are searched in slices
+ * a cell apart at the furthest point, every slice on its own fork join task, and the slices share the best score so
+ * one slice finding a good pose prunes the others.
+ * <p>
+ * Poses are only as good as the resolution, the result is meant to be a starting point for ICP
+ */
+public class CorrelativeMatcher {
+
+    public static final double DEFAULT_RESOLUTION = 50; // mm per cell
+    public static final int DEFAULT_DEPTH = 6; // Coarsest level's squares are 2^depth cells across
+    public static final double DEFAULT_MIN_SCORE = 0.5;
+
+    private static final double MARGIN = 500; // mm of grid around the reference
+
+    private final double resolution;
+    private final int depth;
+    private final double originX, originY; // Corner of cell 0
+    private final int width, height; // Cells the lidar can be in
+    private final int pad; // Every level has this many cells of 0 before the real ones, so squares can start left of the grid
+    private final int paddedWidth, paddedHeight;
+    private final float[][] levels; // Row major with the padding, level 0 is the score of every cell
+
+    private double minScore = DEFAULT_MIN_SCORE;
+
+    // What a match ended with
+    public static class Match {
+        public final Transform transform; // Takes the reference into the scan's frame, the same way ICP's do
+        public final double score; // Between 0 and 1, the mean of the scan's points' scores
+
+        Match(Transform transform, double score) {
+            this.transform = transform;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s score %.2f", transform, score);
+        }
+    }
+
+    // The best translation a rotation slice found
+    private static class Candidate {
+        int x, y;
+        double score = -1;
+    }
+
+    public CorrelativeMatcher(SpatialIndex reference) {
+        this(reference, DEFAULT_RESOLUTION, DEFAULT_DEPTH);
+    }
+
+    public CorrelativeMatcher(SpatialIndex reference, double resolution, int depth) {
+        this.resolution = resolution;
+        this.depth = depth;
+        PointCloud points = reference.getPoints();
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < points.size(); i++) {
+            minX = Math.min(minX, points.getX(i));
+            minY = Math.min(minY, points.getY(i));
+            maxX = Math.max(maxX, points.getX(i));
+            maxY = Math.max(maxY, points.getY(i));
+        }
+        if (points.size() == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        originX = minX - MARGIN;
+        originY = minY - MARGIN;
+        width = (int) Math.ceil((maxX + MARGIN - originX) / resolution) + 1;
+        height = (int) Math.ceil((maxY + MARGIN - originY) / resolution) + 1;
+        pad = 1 << depth;
+        paddedWidth = width + pad;
+        paddedHeight = height + pad;
+
+        // A point right on a reference point scores 1, a cell away about 0.6 and it is about nothing three cells away
+        levels = new float[depth + 1][];
+        float[] scores = new float[paddedWidth * paddedHeight];
+        double sigma = resolution;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double cx = originX + (x + 0.5) * resolution, cy = originY + (y + 0.5) * resolution;
+                int closest = reference.nearest(cx, cy, Double.POSITIVE_INFINITY);
+                if (closest >= 0) {
+                    double dx = cx - points.getX(closest), dy = cy - points.getY(closest);
+                    scores[(y + pad) * paddedWidth + x + pad] = (float) Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+                }
+            }
+        }
+        levels[0] = scores;
+
+        // Each level is the max of four squares of the one before it
+        for (int level = 1; level <= depth; level++) {
+            float[] previous = levels[level - 1], pooled = new float[previous.length];
+            int half = 1 << (level - 1);
+            for (int y = 0; y < paddedHeight; y++) {
+                for (int x = 0; x < paddedWidth; x++) {
+                    float best = previous[y * paddedWidth + x];
+                    if (x + half < paddedWidth) {
+                        best = Math.max(best, previous[y * paddedWidth + x + half]);
+                    }
+                    if (y + half < paddedHeight) {
+                        best = Math.max(best, previous[(y + half) * paddedWidth + x]);
+                        if (x + half < paddedWidth) {
+                            best = Math.max(best, previous[(y + half) * paddedWidth + x + half]);
+                        }
+                    }
+                    pooled[y * paddedWidth + x] = best;
+                }
+            }
+            levels[level] = pooled;
+        }
+    }
+
+    // Matches scoring less than this are not returned, they are more likely to be somewhere that only looks alike
+    public void setMinScore(double minScore) {
+        this.minScore = minScore;
+    }
+
+    public Match match(PointCloud scan) {
+        return match(scan, ForkJoinPool.commonPool());
+    }
+
+    public Match match(PointCloud scan, ForkJoinPool pool) {
+        return match(scan, pool, Long.MAX_VALUE);
+    }
+
+    /**
+     * Searches every position in the reference and every heading
+     *
+     * @param deadline System.nanoTime() when every slice stops searching and the best pose found by then is returned,
+     *                 which may not be the best one there is. Long.MAX_VALUE searches everything
+     * @return the best pose, or null if nothing scored at least the min score
+     */
+    public Match match(PointCloud scan, ForkJoinPool pool, long deadline) {
+        PointCloud points = scan.voxelDownsample(resolution); // More points in a cell would only count that cell more
+        int size = points.size();
+        if (size == 0) {
+            return null;
+        }
+        double furthest = 0;
+        for (int i = 0; i < size; i++) {
+            furthest = Math.max(furthest, Math.hypot(points.getX(i), points.getY(i)));
+        }
+        // The step that moves the furthest point by one cell
+        double step = furthest > resolution
+                ? Math.acos(1 - resolution * resolution / (2 * furthest * furthest)) : Math.PI / 8;
+        int slices = (int) Math.ceil(2 * Math.PI / step);
+        step = 2 * Math.PI / slices;
+
+        // Scores are sums here, a min score is the sum the best one has to beat
+        DoubleAccumulator best = new DoubleAccumulator(Math::max, minScore * size - 1e-9);
+        List<ForkJoinTask<Candidate>> tasks = new ArrayList<>(slices);
+        for (int slice = 0; slice < slices; slice++) {
+            double angle = slice * step;
+            tasks.add(ForkJoinTask.adapt(() -> searchSlice(points, angle, best, deadline)));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+        Candidate bestCandidate = null;
+        double bestAngle = 0;
+        for (int slice = 0; slice < slices; slice++) {
+            Candidate candidate = tasks.get(slice).join();
+            if (candidate.score >= 0 && (bestCandidate == null || candidate.score > bestCandidate.score)) {
+                bestCandidate = candidate;
+                bestAngle = slice * step;
+            }
+        }
+        if (bestCandidate == null) {
+            return null;
+        }
+        // The lidar's pose in the reference, ICP wants the other way around
+        Transform pose = new Transform(bestAngle, originX + (bestCandidate.x + 0.5) * resolution,
+                originY + (bestCandidate.y + 0.5) * resolution);
+        return new Match(pose.inverse(), bestCandidate.score / size);
+    }
+
+    private Candidate searchSlice(PointCloud points, double angle, DoubleAccumulator best, long deadline) {
+        int size = points.size();
+        int[] offsets = new int[2 * size]; // Cells from the lidar to every point, x then y
+        double cos = Math.cos(angle), sin = Math.sin(angle);
+        for (int i = 0; i < size; i++) {
+            double x = points.getX(i), y = points.getY(i);
+            offsets[2 * i] = (int) Math.round((x * cos - y * sin) / resolution);
+            offsets[2 * i + 1] = (int) Math.round((x * sin + y * cos) / resolution);
+        }
+
+        Candidate result = new Candidate();
+        int square = 1 << depth;
+        int columns = (width + square - 1) / square, rows = (height + square - 1) / square;
+        int[] xs = new int[columns * rows], ys = new int[columns * rows];
+        double[] bounds = new double[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int i = row * columns + column;
+                xs[i] = column * square;
+                ys[i] = row * square;
+                bounds[i] = score(depth, xs[i], ys[i], offsets);
+            }
+        }
+        search(depth, xs, ys, bounds, offsets, best, deadline, result);
+        return result;
+    }
+
+    // Goes through the candidates best bound first, splitting every square that could still beat the best into four
+    private void search(int level, int[] xs, int[] ys, double[] bounds, int[] offsets, DoubleAccumulator best, long deadline,
+                        Candidate result) {
+        sortByBound(xs, ys, bounds);
+        for (int i = 0; i < bounds.length; i++) {
+            if (bounds[i] <= best.get()) {
+                return; // Sorted, so nothing after it can do better either
+            }
+            if (level > 0 && System.nanoTime() > deadline) {
+                return; // Out of time, whatever the slice found so far is its answer
+            }
+            if (level == 0) {
+                if (xs[i] < width && ys[i] < height && bounds[i] > result.score) {
+                    result.x = xs[i];
+                    result.y = ys[i];
+                    result.score = bounds[i];
+                    best.accumulate(bounds[i]);
+                }
+                continue;
+            }
+            int half = 1 << (level - 1);
+            int[] childXs = new int[4], childYs = new int[4];
+            double[] childBounds = new double[4];
+            int children = 0;
+            for (int dy = 0; dy <= half; dy += half) {
+                for (int dx = 0; dx <= half; dx += half) {
+                    int x = xs[i] + dx, y = ys[i] + dy;
+                    if (x >= width || y >= height) {
+                        continue; // The lidar can't be outside the grid
+                    }
+                    childXs[children] = x;
+                    childYs[children] = y;
+                    childBounds[children] = score(level - 1, x, y, offsets);
+                    children++;
+                }
+            }
+            if (children < 4) {
+                childXs = Arrays.copyOf(childXs, children);
+                childYs = Arrays.copyOf(childYs, children);
+                childBounds = Arrays.copyOf(childBounds, children);
+            }
+            search(level - 1, childXs, childYs, childBounds, offsets, best, deadline, result);
+        }
+    }
+
+    // Sum of the level's cells under the scan with the lidar in cell (x, y), an upper bound for the square starting there
+    private double score(int level, int x, int y, int[] offsets) {
+        float[] grid = levels[level];
+        double sum = 0;
+        for (int i = 0; i < offsets.length; i += 2) {
+            int px = x + offsets[i] + pad, py = y + offsets[i + 1] + pad;
+            if (px >= 0 && py >= 0 && px < paddedWidth && py < paddedHeight) {
+                sum += grid[py * paddedWidth + px];
+            }
+        }
+        return sum;
+    }
+
+    // Insertion sort, highest bound first. There are only ever 4 children, and the top level is small
+    private static void sortByBound(int[] xs, int[] ys, double[] bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            double bound = bounds[i];
+            int x = xs[i], y = ys[i];
+            int j = i - 1;
+            while (j >= 0 && bounds[j] < bound) {
+                bounds[j + 1] = bounds[j];
+                xs[j + 1] = xs[j];
+                ys[j + 1] = ys[j];
+                j--;
+            }
+            bounds[j + 1] = bound;
+            xs[j + 1] = x;
+            ys[j + 1] = y;
+        }
+    }
+
+    public double getResolution() {
+        return resolution;
+    }
+}
@@ -0,0 +1,41 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CorrelativeMatcherTest {
+
+    @Test
+    public void findsTheScanAnywhere() throws IOException {
+        PointCloud reference = PointCloud.fromPolarFile("out.txt");
+        CorrelativeMatcher matcher = new CorrelativeMatcher(new KdTree(reference));
+        Random random = new Random(6);
+        for (int i = 0; i < 5; i++) {
+            Transform truth = new Transform(random.nextDouble() * 2 * Math.PI, random.nextDouble() * 2000 - 1000,
+                    random.nextDouble() * 2000 - 1000);
+            CorrelativeMatcher.Match match = matcher.match(truth.apply(reference));
+
+            // Compared as poses, the lidar's position is what has to be within a couple of cells
+            Transform pose = match.transform.inverse(), expected = truth.inverse();
+            assertEquals(0, Math.hypot(pose.tx - expected.tx, pose.ty - expected.ty), 2 * matcher.getResolution());
+            assertEquals(0, Math.sin(pose.theta - expected.theta), 0.02);
+            assertTrue(match.score > 0.8);
+        }
+    }
+
+    @Test
+    public void givesUpOnScansThatFitNowhere() throws IOException {
+        CorrelativeMatcher matcher = new CorrelativeMatcher(new KdTree(PointCloud.fromPolarFile("out.txt")));
+        matcher.setMinScore(0.9);
+        Random random = new Random(7);
+        PointCloud noise = new PointCloud();
+        for (int i = 0; i < 300; i++) {
+            noise.addPoint(random.nextDouble() * 6000 - 3000, random.nextDouble() * 6000 - 3000);
+        }
+        assertNull(matcher.match(noise));
+    }
+}
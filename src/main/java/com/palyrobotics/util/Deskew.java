@@ -0,0 +1,152 @@
+package com.palyrobotics.util;
+
+/**
+ * Takes out the smear a moving lidar puts into a revolution. Each sample is moved to where the lidar was at the start of
+ * the revolution as it comes in, and once the revolution is complete the whole cloud is moved once more to where the
+ * lidar was at its last sample, so ICP gets a revolution that looks like it was all taken at that instant.
+ * <p>
+ * The motion is taken to be constant over a revolution. The velocity comes either from consecutive ICP transforms
+ * ({@link #update}) or from odometry ({@link #setVelocity}) on any thread, the samples come from the one thread
+ * building revolutions, normally through a ScanFilter
+ */
+public class Deskew {
+
+    private static final long MAX_POSE_GAP = 500_000_000; // ns, poses further apart than this don't give a velocity
+    private static final double VELOCITY_SMOOTHING = 0.5;
+    private static final double MAX_SPEED = 5000; // mm/s, anything faster is a bad match and not the robot
+    private static final double MAX_TURN_RATE = 4 * Math.PI; // rad/s
+
+    // In the lidar's frame, mm/s and rad/s
+    private static final class Velocity {
+        final double vx, vy, omega;
+
+        Velocity(double vx, double vy, double omega) {
+            this.vx = vx;
+            this.vy = vy;
+            this.omega = omega;
+        }
+    }
+
+    private static final Velocity STOPPED = new Velocity(0, 0, 0);
+
+    private volatile Velocity velocity = STOPPED;
+
+    // Only touched by whoever calls update
+    private Transform lastTransform;
+    private long lastTime;
+
+    // Only touched by the thread building revolutions
+    private Velocity current = STOPPED; // Taken at the start of every revolution, so all of its samples move the same way
+    private boolean started;
+    private long start, end;
+    private final double[] moved = new double[2];
+
+    /**
+     * Works out the velocity from the ICP transform of a revolution and the time of its last sample, in the same clock
+     * the samples have. Call {@link #reset} instead when ICP did not converge
+     */
+    public void update(Transform transform, long time) {
+        Transform last = lastTransform;
+        long elapsed = time - lastTime;
+        lastTransform = transform;
+        lastTime = time;
+        if (last == null || elapsed <= 0) {
+            return;
+        }
+        if (elapsed > MAX_POSE_GAP) {
+            velocity = STOPPED;
+            return;
+        }
+
+        // Transforms take the reference into the lidar's frame, so the lidar's pose is the inverse and the motion between
+        // the two poses in the frame of the first one is last * transform^-1
+        Transform motion = last.compose(transform.inverse());
+        double angle = Math.atan2(Math.sin(motion.theta), Math.cos(motion.theta));
+        // Undoes the arc the translation was made along, the inverse of what toStart does
+        double a, b;
+        if (Math.abs(angle) < 1e-9) {
+            a = 1;
+            b = 0;
+        } else {
+            a = Math.sin(angle) / angle;
+            b = (1 - Math.cos(angle)) / angle;
+        }
+        double seconds = elapsed / 1e9;
+        double scale = 1 / ((a * a + b * b) * seconds);
+        double vx = (a * motion.tx + b * motion.ty) * scale;
+        double vy = (a * motion.ty - b * motion.tx) * scale;
+        double omega = angle / seconds;
+        if (Math.hypot(vx, vy) > MAX_SPEED || Math.abs(omega) > MAX_TURN_RATE) {
+            reset();
+            return;
+        }
+
+        Velocity v = velocity;
+        velocity = new Velocity(v.vx + (vx - v.vx) * VELOCITY_SMOOTHING, v.vy + (vy - v.vy) * VELOCITY_SMOOTHING,
+                v.omega + (omega - v.omega) * VELOCITY_SMOOTHING);
+    }
+
+    // Forgets the motion, revolutions are left as they are until update has two transforms again
+    public void reset() {
+        lastTransform = null;
+        velocity = STOPPED;
+    }
+
+    // For odometry, in the lidar's frame in mm/s and rad/s. Replaces what update worked out
+    public void setVelocity(double vx, double vy, double omega) {
+        velocity = new Velocity(vx, vy, omega);
+    }
+
+    // Revolution side
+
+    // Every sample's time has to come through here, even the ones that get dropped, so the revolution's start and end are right
+    public void sample(long time) {
+        if (!started) {
+            started = true;
+            start = time;
+            current = velocity;
+        }
+        end = time;
+    }
+
+    // Moves a sample taken at time into the lidar's frame at the start of the revolution, out is {x, y}
+    public void toStart(double x, double y, long time, double[] out) {
+        Velocity v = current;
+        double seconds = (time - start) / 1e9;
+        double angle = v.omega * seconds;
+        double cos = Math.cos(angle), sin = Math.sin(angle);
+        // Where the lidar got to by then, moving along an arc
+        double a, b;
+        if (Math.abs(angle) < 1e-9) {
+            a = 1;
+            b = 0;
+        } else {
+            a = sin / angle;
+            b = (1 - cos) / angle;
+        }
+        double dx = v.vx * seconds, dy = v.vy * seconds;
+        out[0] = x * cos - y * sin + a * dx - b * dy;
+        out[1] = x * sin + y * cos + b * dx + a * dy;
+    }
+
+    // The revolution is complete, its points go from the start of it to its last sample and the next one starts fresh
+    public void finish(PointCloud points) {
+        if (!started) {
+            return;
+        }
+        started = false;
+        if (end <= start || current == STOPPED) {
+            return;
+        }
+        // Where the lidar was at the last sample, the points move the opposite way
+        toStart(0, 0, end, moved);
+        double angle = current.omega * (end - start) / 1e9;
+        double cos = Math.cos(angle), sin = Math.sin(angle);
+        double[] xs = points.xs(), ys = points.ys();
+        for (int i = 0; i < points.size(); i++) {
+            double x = xs[i] - moved[0], y = ys[i] - moved[1];
+            xs[i] = x * cos + y * sin;
+            ys[i] = y * cos - x * sin;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeskewTest {
+
+    private static final double SPEED = 1000; // mm/s forward
+    private static final double TURN_RATE = 1; // rad/s
+
+    // Where the lidar is after seconds of driving along the arc
+    private static Transform pose(double seconds) {
+        double angle = TURN_RATE * seconds;
+        return new Transform(angle, SPEED * Math.sin(angle) / TURN_RATE, SPEED * (1 - Math.cos(angle)) / TURN_RATE);
+    }
+
+    // A revolution of a circle of posts 3m around where the lidar started, taken over 140ms while it drives
+    private static PointCloud revolution(Deskew deskew) {
+        ScanFilter filter = new ScanFilter();
+        filter.setDeskew(deskew);
+        PointCloud out = new PointCloud();
+        for (int i = 0; i < 36; i++) {
+            double seconds = i * 0.004;
+            Transform lidar = pose(seconds).inverse(); // Takes the world into the lidar's frame
+            Point post = lidar.apply(new Point(3000 * Math.cos(i * Math.PI / 18), 3000 * Math.sin(i * Math.PI / 18)));
+            filter.add(Math.toDegrees(Math.atan2(post.y, post.x)), Math.hypot(post.x, post.y), (long) (seconds * 1e9), out);
+        }
+        filter.finish(out);
+        return out;
+    }
+
+    private static void assertTakenAt(PointCloud points, double seconds, double tolerance) {
+        Transform lidar = pose(seconds).inverse();
+        for (int i = 0; i < points.size(); i++) {
+            Point expected = lidar.apply(new Point(3000 * Math.cos(i * Math.PI / 18), 3000 * Math.sin(i * Math.PI / 18)));
+            assertEquals(expected.x, points.getX(i), tolerance);
+            assertEquals(expected.y, points.getY(i), tolerance);
+        }
+    }
+
+    @Test
+    public void movesEverySampleToTheEnd() {
+        Deskew deskew = new Deskew();
+        deskew.setVelocity(SPEED, 0, TURN_RATE);
+        PointCloud points = revolution(deskew);
+        assertEquals(36, points.size());
+        assertTakenAt(points, 35 * 0.004, 1e-6);
+    }
+
+    @Test
+    public void getsTheVelocityFromTransforms() {
+        Deskew deskew = new Deskew();
+        for (int i = 0; i < 20; i++) { // It smooths, so it takes a few to get all the way there
+            deskew.update(pose(i * 0.1).inverse(), (long) (i * 1e8));
+        }
+        PointCloud points = revolution(deskew);
+        assertTakenAt(points, 35 * 0.004, 0.01);
+    }
+}
@@ -0,0 +1,185 @@
+package com.palyrobotics.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A grid over a reference where every cell holds the reference point closest to its centre, so a closest point query is
+ * one array read instead of a tree search. The answer is the closest point to the cell's centre, which is only ever
+ * wrong close to the line halfway between two points and then by less than a cell. Queries outside the grid use the
+ * closest cell on its edge, and the max distance is always checked against the real point.
+ * <p>
+ * Building it does a tree query per cell, so it is meant to be done ahead of time with ReferenceCompiler. The file is
+ * a header, the reference points and then the cells, and loading maps the cells instead of reading them
+ */
+public class DistanceField implements SpatialIndex {
+
+    public static final double DEFAULT_RESOLUTION = 10; // mm per cell
+    public static final double DEFAULT_MARGIN = 1000; // mm of grid around the reference on every side
+
+    private static final int MAGIC = 0x44464C44; // "DFLD"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 * 3 + 4 * 3;
+
+    private final PointCloud points;
+    private final double resolution, originX, originY; // originX/Y is the corner of cell 0
+    private final int width, height;
+    private final IntBuffer cells; // Row major, -1 where the reference is empty
+
+    private DistanceField(PointCloud points, double resolution, double originX, double originY, int width, int height,
+                          IntBuffer cells) {
+        this.points = points;
+        this.resolution = resolution;
+        this.originX = originX;
+        this.originY = originY;
+        this.width = width;
+        this.height = height;
+        this.cells = cells;
+    }
+
+    public static DistanceField build(PointCloud reference) {
+        return build(reference, DEFAULT_RESOLUTION, DEFAULT_MARGIN);
+    }
+
+    public static DistanceField build(PointCloud reference, double resolution, double margin) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < reference.size(); i++) {
+            minX = Math.min(minX, reference.getX(i));
+            minY = Math.min(minY, reference.getY(i));
+            maxX = Math.max(maxX, reference.getX(i));
+            maxY = Math.max(maxY, reference.getY(i));
+        }
+        if (reference.size() == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        double originX = minX - margin, originY = minY - margin;
+        int width = (int) Math.ceil((maxX + margin - originX) / resolution) + 1;
+        int height = (int) Math.ceil((maxY + margin - originY) / resolution) + 1;
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " grid is too big, use a coarser resolution");
+        }
+
+        KdTree tree = new KdTree(reference);
+        int[] cells = new int[width * height];
+        for (int row = 0; row < height; row++) {
+            double y = originY + (row + 0.5) * resolution;
+            for (int column = 0; column < width; column++) {
+                cells[row * width + column] = tree.nearest(originX + (column + 0.5) * resolution, y, Double.POSITIVE_INFINITY);
+            }
+        }
+        return new DistanceField(reference, resolution, originX, originY, width, height, IntBuffer.wrap(cells));
+    }
+
+    public void save(String file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(resolution);
+            out.writeDouble(originX);
+            out.writeDouble(originY);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(points.size());
+            for (int i = 0; i < points.size(); i++) {
+                out.writeDouble(points.getX(i));
+                out.writeDouble(points.getY(i));
+            }
+            for (int i = 0; i < width * height; i++) {
+                out.writeInt(cells.get(i));
+            }
+        }
+    }
+
+    // The mapping stays valid after the channel is closed and is unmapped when the field is garbage collected
+    public static DistanceField load(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(file), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a distance field");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " is version " + version + ", this reads version " + VERSION);
+            }
+            double resolution = buffer.getDouble();
+            double originX = buffer.getDouble(), originY = buffer.getDouble();
+            int width = buffer.getInt(), height = buffer.getInt();
+            int count = buffer.getInt();
+            if (buffer.remaining() != count * 16L + (long) width * height * 4) {
+                throw new IOException(file + " is cut off or has something after it");
+            }
+
+            PointCloud points = new PointCloud(count);
+            for (int i = 0; i < count; i++) {
+                points.addPoint(buffer.getDouble(), buffer.getDouble());
+            }
+            return new DistanceField(points, resolution, originX, originY, width, height, buffer.slice().asIntBuffer());
+        }
+    }
+
+    /**
+     * Loads the field ReferenceCompiler made for a reference scan, or builds it from the scan if there is none or the
+     * scan changed after it was compiled
+     */
+    public static DistanceField forReference(String reference) throws IOException {
+        Path compiled = Path.of(fileFor(reference));
+        if (Files.exists(compiled) && Files.getLastModifiedTime(compiled).compareTo(Files.getLastModifiedTime(Path.of(reference))) >= 0) {
+            return load(compiled.toString());
+        }
+        return build(PointCloud.fromPolarFile(reference));
+    }
+
+    // out.txt compiles to out.field
+    public static String fileFor(String reference) {
+        int dot = reference.lastIndexOf('.');
+        return (dot > reference.lastIndexOf('/') ? reference.substring(0, dot) : reference) + ".field";
+    }
+
+    @Override
+    public int nearest(double x, double y, double maxDistanceSquared) {
+        int closest = cells.get(cell(x, y));
+        if (closest < 0) {
+            return -1;
+        }
+        double dx = x - points.getX(closest), dy = y - points.getY(closest);
+        return dx * dx + dy * dy <= maxDistanceSquared ? closest : -1;
+    }
+
+    // Distance to the closest reference point as the grid has it, infinite for an empty reference
+    public double distance(double x, double y) {
+        int closest = cells.get(cell(x, y));
+        return closest < 0 ? Double.POSITIVE_INFINITY : Math.hypot(x - points.getX(closest), y - points.getY(closest));
+    }
+
+    private int cell(double x, double y) {
+        int column = Math.min(width - 1, Math.max(0, (int) Math.floor((x - originX) / resolution)));
+        int row = Math.min(height - 1, Math.max(0, (int) Math.floor((y - originY) / resolution)));
+        return row * width + column;
+    }
+
+    @Override
+    public PointCloud getPoints() {
+        return points;
+    }
+
+    public double getResolution() {
+        return resolution;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,60 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DistanceFieldTest {
+
+    private static PointCloud randomCloud(Random random) {
+        PointCloud cloud = new PointCloud();
+        for (int i = 0; i < 500; i++) {
+            cloud.addPoint(random.nextDouble() * 2000 - 1000, random.nextDouble() * 2000 - 1000);
+        }
+        return cloud;
+    }
+
+    @Test
+    public void isWithinACellOfTheTree() {
+        Random random = new Random(3);
+        PointCloud cloud = randomCloud(random);
+        KdTree tree = new KdTree(cloud);
+        DistanceField field = DistanceField.build(cloud, 10, 200);
+
+        double diagonal = 10 * Math.sqrt(2);
+        for (int i = 0; i < 2000; i++) {
+            double x = random.nextDouble() * 2400 - 1200, y = random.nextDouble() * 2400 - 1200;
+            double exact = distance(cloud, tree.nearest(x, y, Double.POSITIVE_INFINITY), x, y);
+            double approximate = distance(cloud, field.nearest(x, y, Double.POSITIVE_INFINITY), x, y);
+            assertTrue(approximate >= exact);
+            assertTrue(approximate <= exact + diagonal);
+            assertEquals(approximate, field.distance(x, y), 1e-9);
+        }
+        assertEquals(-1, field.nearest(5000, 5000, 1000 * 1000)); // Off the grid and too far
+    }
+
+    @Test
+    public void loadsWhatWasSaved() throws IOException {
+        Random random = new Random(4);
+        PointCloud cloud = randomCloud(random);
+        DistanceField field = DistanceField.build(cloud);
+        File file = File.createTempFile("reference", ".field");
+        file.deleteOnExit();
+        field.save(file.getPath());
+
+        DistanceField loaded = DistanceField.load(file.getPath());
+        assertEquals(cloud.size(), loaded.getPoints().size());
+        for (int i = 0; i < 2000; i++) {
+            double x = random.nextDouble() * 3000 - 1500, y = random.nextDouble() * 3000 - 1500;
+            assertEquals(field.nearest(x, y, Double.POSITIVE_INFINITY), loaded.nearest(x, y, Double.POSITIVE_INFINITY));
+        }
+    }
+
+    private static double distance(PointCloud cloud, int i, double x, double y) {
+        return Math.hypot(cloud.getX(i) - x, cloud.getY(i) - y);
+    }
+}
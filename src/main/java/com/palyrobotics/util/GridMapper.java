@@ -0,0 +1,86 @@
+package com.palyrobotics.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Puts every converged pose's revolution into an occupancy grid and, every snapshot interval, has ICP match against a
+ * snapshot of the grid instead of what it had. The interval is on the revolutions' clock, so replays running faster
+ * than real time snapshot as often per revolution as the robot would.
+ * <p>
+ * Only taking the snapshot happens on the caller's thread, since nothing else may touch the grid. The KdTree and ICP's
+ * pyramid levels and relocalization matcher are built on a thread of their own, which takes far longer than a
+ * revolution, and ICP switches over when they are ready. A snapshot that comes due while one is still being built is
+ * skipped
+ */
+public class GridMapper implements PoseListener {
+
+    public static final int MIN_SNAPSHOT_POINTS = 100; // Fewer occupied cells than this and the reference stays
+
+    private final OccupancyGrid grid;
+    private final ICP icp;
+    private final long snapshotInterval;
+    private long lastSnapshot;
+
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "GridMapper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean building;
+    private volatile long snapshots;
+
+    /**
+     * @param snapshotInterval ns between snapshots, 0 keeps ICP's references and only builds the grid
+     */
+    public GridMapper(OccupancyGrid grid, ICP icp, long snapshotInterval) {
+        this.grid = grid;
+        this.icp = icp;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    @Override
+    public void onPose(Revolution revolution, ICPResult result) {
+        if (!result.converged) {
+            return;
+        }
+        grid.insert(revolution.getPoints(), result.transform);
+        snapshot(revolution.getEndTime());
+    }
+
+    // The first snapshot waits a whole interval after the first scan went in, one scan alone is a bad reference
+    private void snapshot(long time) {
+        if (lastSnapshot == 0) {
+            lastSnapshot = time;
+            return;
+        }
+        if (snapshotInterval <= 0 || time - lastSnapshot < snapshotInterval || building) {
+            return;
+        }
+        PointCloud snapshot = grid.snapshot();
+        if (snapshot.size() < MIN_SNAPSHOT_POINTS) {
+            return;
+        }
+        lastSnapshot = time;
+        building = true;
+        builder.execute(() -> {
+            try {
+                icp.setReferences(new KdTree(snapshot));
+                snapshots++;
+            } catch (RuntimeException e) { // ICP keeps the last references, the next snapshot tries again
+                e.printStackTrace();
+            } finally {
+                building = false;
+            }
+        });
+    }
+
+    public OccupancyGrid getGrid() {
+        return grid;
+    }
+
+    // Snapshots ICP has switched to so far
+    public long getSnapshots() {
+        return snapshots;
+    }
+}
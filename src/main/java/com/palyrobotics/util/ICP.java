@@ -1,120 +1,367 @@
 package com.palyrobotics.util;
 
+import com.palyrobotics.metrics.Counter;
+import com.palyrobotics.metrics.Histogram;
+import com.palyrobotics.metrics.MetricRegistry;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.DoubleAccumulator;
 
+/**
+ * Finds the transform between a lidar scan and the closest of several references.
+ * With more than one reference every reference runs on its own fork join task, and a reference whose error is already
+ * worse than the best finished one is cut off early instead of running until it converges or times out
+ */
 public class ICP {
 
-    private HashMap<PointCloud, Transform> references; // The field
+    // POINT_TO_LINE matches points to wall segments, which converges faster in arenas that are mostly walls
+    public enum Mode {
+        POINT_TO_POINT, POINT_TO_LINE
+    }
+
+    private static final int MIN_ITERATIONS_BEFORE_PRUNING = 2; // The first iteration has no outlier threshold, so its error is not fair to compare
+
+    public static final double[] DEFAULT_PYRAMID = {320, 80}; // Voxel sizes in mm, coarsest first
+    public static final int DEFAULT_LEVEL_ITERATIONS = 50;
+    private static final double GATE_VOXELS = 3; // Coarse levels match points at least this many voxels away
+    public static final double DEFAULT_RELOCALIZATION_ERROR = 100; // mm
+
+    private volatile List<Reference> references; // The field, swapped whole by setReferences and read once per match
     private long timeout; // Timeout for each call of doICP in nano seconds
+    private double maxDistanceSquared; // Points further than this from the reference have no correspondence
+    private ForkJoinPool pool;
+    private Mode mode = Mode.POINT_TO_POINT;
+    private double[] pyramid = new double[0]; // Voxel sizes of the levels before full resolution, none by default
+    private int levelIterations;
+    private double relocalizationError = Double.POSITIVE_INFINITY; // Off until setRelocalization
+
+    // Not registered anywhere until setMetrics, so recording never has to check
+    private Counter calls = new Counter(), converged = new Counter(), timeouts = new Counter(), failures = new Counter();
+    private Counter relocalizations = new Counter(), relocalized = new Counter();
+    private Histogram iterations = new Histogram(), residual = new Histogram(), latency = new Histogram();
+    private Histogram relocalizationLatency = new Histogram();
 
     public ICP(long timeout, HashMap<PointCloud, Transform> reference) {
+        this(timeout, reference, Double.POSITIVE_INFINITY);
+    }
+
+    public ICP(long timeout, HashMap<PointCloud, Transform> reference, double maxCorrespondenceDistance) {
+        this(timeout, reference, maxCorrespondenceDistance, ForkJoinPool.commonPool());
+    }
+
+    public ICP(long timeout, HashMap<PointCloud, Transform> reference, double maxCorrespondenceDistance, ForkJoinPool pool) {
         this.timeout = timeout;
-        this.references = reference;
+        this.maxDistanceSquared = maxCorrespondenceDistance * maxCorrespondenceDistance;
+        this.pool = pool;
+        this.references = new ArrayList<>();
+        for (PointCloud cloud : reference.keySet()) {
+            references.add(new Reference(cloud, null));
+        }
     }
 
-    public Transform doICP(PointCloud lidarOutput, Transform transform) {
-        HashMap<PointCloud, Transform> transforms = new HashMap<>();
-        for (PointCloud reference : references.keySet()) {
-            transforms.put(reference, doICP(reference, lidarOutput, transform));
+    // Point to point ICP against indexes built ahead of time, like a DistanceField loaded from ReferenceCompiler's output
+    public ICP(long timeout, double maxCorrespondenceDistance, SpatialIndex... references) {
+        this.timeout = timeout;
+        this.maxDistanceSquared = maxCorrespondenceDistance * maxCorrespondenceDistance;
+        this.pool = ForkJoinPool.commonPool();
+        this.references = new ArrayList<>();
+        for (SpatialIndex index : references) {
+            this.references.add(new Reference(index, null));
         }
-        return getClosestMatch(transforms, lidarOutput);
     }
 
-    private Transform doICP(PointCloud reference, PointCloud lidarOutput, Transform transform) {
-        // https://github.com/Team254/FRC-2018-Public/blob/master/src/main/java/com/team254/frc2018/Constants.java#L56
-        long startingTime = System.nanoTime();
-        double lastMeanDist = Double.POSITIVE_INFINITY;
+    // Point to line ICP against segments that were fitted or loaded ahead of time
+    public ICP(long timeout, List<SegmentMap> segmentMaps, double maxCorrespondenceDistance) {
+        this.timeout = timeout;
+        this.maxDistanceSquared = maxCorrespondenceDistance * maxCorrespondenceDistance;
+        this.pool = ForkJoinPool.commonPool();
+        this.references = new ArrayList<>();
+        for (SegmentMap segments : segmentMaps) {
+            references.add(new Reference(segments.getPoints(), segments));
+        }
+        this.mode = Mode.POINT_TO_LINE;
+    }
 
-        while (System.nanoTime() - startingTime <= timeout) {
-            final Transform transInv = transform.inverse();
-
-            final double threshold = lastMeanDist;
-            double sumDists = 0;
-
-            /// get pairs of corresponding points
-            double SumXa = 0, SumXb = 0, SumYa = 0, SumYb = 0;
-            double Sxx = 0, Sxy = 0, Syx = 0, Syy = 0;
-            int N = 0;
-            for (Point p : lidarOutput) {
-                Point p2 = transInv.apply(p);
-                Point rp = reference.getClosestPoint(p2);
-                double dist = p2.distanceTo(rp);
-                sumDists += dist;
-                if (dist > threshold) continue;
-                N++;
-
-                // Compute the terms:
-                SumXa += p.x;
-                SumYa += p.y;
-
-                SumXb += rp.x;
-                SumYb += rp.y;
-
-                Sxx += p.x * rp.x;
-                Sxy += p.x * rp.y;
-                Syx += p.y * rp.x;
-                Syy += p.y * rp.y;
+    /**
+     * Point to line needs segments, references that only have points get segments fitted to them here,
+     * which expects the points to be in the order the lidar scanned them
+     */
+    public void setMode(Mode mode) {
+        if (mode == Mode.POINT_TO_LINE) {
+            for (Reference reference : references) {
+                if (reference.segments == null) {
+                    reference.segments = SegmentMap.fit(reference.cloud);
+                }
+            }
+        }
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setPyramid() {
+        setPyramid(DEFAULT_PYRAMID, DEFAULT_LEVEL_ITERATIONS);
+    }
+
+    /**
+     * Aligns voxel downsampled versions of the scan and the references first, coarsest first, before running at full
+     * resolution from where they ended up. Coarse levels have few points and match points further away, so they get
+     * close from a big jump (the robot got bumped) quickly, and full resolution only has to do the last few mm.
+     * Each level stops at levelIterations or when it converges, full resolution gets whatever is left of the timeout
+     *
+     * @param voxelSizes mm, coarsest first. Empty turns the pyramid off
+     */
+    public void setPyramid(double[] voxelSizes, int levelIterations) {
+        for (Reference reference : references) {
+            reference.buildLevels(voxelSizes);
+        }
+        this.pyramid = voxelSizes.clone();
+        this.levelIterations = levelIterations;
+    }
+
+    public void setRelocalization() {
+        setRelocalization(DEFAULT_RELOCALIZATION_ERROR);
+    }
+
+    /**
+     * When the best reference ends with an error over maxError or with no matching points at all, the scan is searched
+     * for over every reference with a CorrelativeMatcher and ICP runs again from the best pose it found. That takes tens
+     * of ms instead of a few, so it is only worth it when ICP is lost. Building the matchers takes a while too, which is
+     * why it happens here and not on the first lost scan
+     */
+    public void setRelocalization(double maxError) {
+        for (Reference reference : references) {
+            if (reference.matcher == null) {
+                reference.matcher = new CorrelativeMatcher(reference.index);
+            }
+        }
+        this.relocalizationError = maxError;
+    }
+
+    /**
+     * Swaps the references for new ones, like a snapshot of an OccupancyGrid, keeping the mode, pyramid and
+     * relocalization. Their levels, segments and matchers are built here, so this takes as long as constructing them
+     * would, but it can run on another thread while matches go on: a running match keeps the references it started with
+     * and the next one gets the new ones. The mode, pyramid and relocalization have to be set up before
+     */
+    public void setReferences(SpatialIndex... indexes) {
+        List<Reference> references = new ArrayList<>(indexes.length);
+        for (SpatialIndex index : indexes) {
+            Reference reference = new Reference(index, null);
+            if (mode == Mode.POINT_TO_LINE) {
+                reference.segments = SegmentMap.fit(reference.cloud);
+            }
+            if (pyramid.length > 0) {
+                reference.buildLevels(pyramid);
             }
+            if (relocalizationError != Double.POSITIVE_INFINITY) {
+                reference.matcher = new CorrelativeMatcher(index);
+            }
+            references.add(reference);
+        }
+        this.references = references;
+    }
 
-            lastMeanDist = sumDists / N;
+    /**
+     * Records every match into the registry under the prefix: calls, converged, timeouts (the best reference didn't
+     * converge), failures (no matching points), iterations, residual_mm (the best reference's error) and latency_us.
+     * With relocalization also relocalizations (times it searched), relocalized (times that gave a better match) and
+     * relocalization_us
+     */
+    public void setMetrics(MetricRegistry registry, String prefix) {
+        calls = registry.counter(prefix + ".calls");
+        converged = registry.counter(prefix + ".converged");
+        timeouts = registry.counter(prefix + ".timeouts");
+        failures = registry.counter(prefix + ".failures");
+        iterations = registry.histogram(prefix + ".iterations");
+        residual = registry.histogram(prefix + ".residual_mm", 0.1);
+        latency = registry.histogram(prefix + ".latency_us");
+        relocalizations = registry.counter(prefix + ".relocalizations");
+        relocalized = registry.counter(prefix + ".relocalized");
+        relocalizationLatency = registry.histogram(prefix + ".relocalization_us");
+    }
 
-            /// calculate the new transform
-            // code based on http://mrpt.ual.es/reference/devel/se2__l2_8cpp_source.html#l00158
-            if (N == 0) throw new RuntimeException("ICP: no matching points"); // TODO: handle this better, or avoid it
-            final double N_inv = 1.0 / N;
+    public Transform doICP(PointCloud lidarOutput, Transform transform) {
+        return match(lidarOutput, transform).transform;
+    }
 
-            final double mean_x_a = SumXa * N_inv;
-            final double mean_y_a = SumYa * N_inv;
-            final double mean_x_b = SumXb * N_inv;
-            final double mean_y_b = SumYb * N_inv;
+    /**
+     * Runs ICP against every reference and returns the one with the lowest error
+     *
+     * @throws NoMatchException if no reference had any matching points, even after relocalizing
+     */
+    public ICPResult match(PointCloud lidarOutput, Transform transform) {
+        return match(lidarOutput, transform, timeout, Long.MAX_VALUE);
+    }
 
-            // Auxiliary variables Ax,Ay:
-            final double Ax = N * (Sxx + Syy) - SumXa * SumXb - SumYa * SumYb;
-            final double Ay = SumXa * SumYb + N * (Syx - Sxy) - SumXb * SumYa;
+    /**
+     * Same as above, but everything stops at the deadline (a System.nanoTime()) if that comes before the timeout is up,
+     * relocalization included, so the pose is never later than the deadline by more than an iteration
+     *
+     * @throws NoMatchException if the deadline already passed, or nothing matched in time
+     */
+    public ICPResult match(PointCloud lidarOutput, Transform transform, long deadline) {
+        long budget = Math.min(timeout, deadline - System.nanoTime());
+        if (budget <= 0) {
+            failures.increment();
+            throw new NoMatchException("ICP: the deadline already passed");
+        }
+        return match(lidarOutput, transform, budget, deadline);
+    }
 
-            final double theta = (Ax == 0 && Ay == 0) ? 0.0 : Math.atan2(Ay, Ax);
+    // Long.MAX_VALUE as the deadline gives relocalization as long as it takes
+    private ICPResult match(PointCloud lidarOutput, Transform transform, long budget, long deadline) {
+        long start = System.nanoTime();
+        List<Reference> references = this.references;
+        DoubleAccumulator bestError = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+        ICPResult best = null;
 
-            final double ccos = Math.cos(theta);
-            final double csin = Math.sin(theta);
+        // Downsampled once here, every reference aligns the same levels
+        PointCloud[] scanLevels = new PointCloud[pyramid.length];
+        for (int level = 0; level < pyramid.length; level++) {
+            scanLevels[level] = lidarOutput.voxelDownsample(pyramid[level]);
+        }
 
-            final double tx = mean_x_a - mean_x_b * ccos + mean_y_b * csin;
-            final double ty = mean_y_a - mean_x_b * csin - mean_y_b * ccos;
+        if (references.size() == 1) { // Not worth a task
+            best = doICP(references.get(0), lidarOutput, scanLevels, transform, bestError, budget);
+        } else {
+            List<ForkJoinTask<ICPResult>> tasks = new ArrayList<>(references.size());
+            for (Reference reference : references) {
+                tasks.add(ForkJoinTask.adapt(() -> doICP(reference, lidarOutput, scanLevels, transform, bestError, budget)));
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
 
-            Transform prevTrans = transform;
-            transform = new Transform(theta, tx, ty);
-            if (isConverged(prevTrans, transform)) {
-                break;
+            for (var task : tasks) {
+                ICPResult result = task.join();
+                if (best == null || result.error < best.error) {
+                    best = result;
+                }
             }
         }
-        return transform;
+
+        if (best == null || best.transform == null || best.error > relocalizationError) {
+            ICPResult relocalizedResult = relocalize(references, lidarOutput, scanLevels, deadline);
+            if (relocalizedResult != null && (best == null || best.transform == null || relocalizedResult.error < best.error)) {
+                best = relocalizedResult;
+                relocalized.increment();
+            }
+        }
+
+        if (best == null || best.transform == null) {
+            failures.increment();
+            throw new NoMatchException("ICP: no matching points");
+        }
+
+        calls.increment();
+        (best.converged ? converged : timeouts).increment();
+        iterations.record(best.iterations);
+        residual.record(best.error);
+        latency.record((System.nanoTime() - start) / 1000);
+        return best;
     }
 
-    private Transform getClosestMatch(HashMap<PointCloud, Transform> transforms, PointCloud lidarOutput) {
-        double minDistance = Double.POSITIVE_INFINITY;
-        Transform closestTransform = null;
+    private ICPResult doICP(Reference reference, PointCloud lidarOutput, PointCloud[] scanLevels, Transform transform,
+                            DoubleAccumulator bestError, long timeout) {
+        // https://github.com/Team254/FRC-2018-Public/blob/master/src/main/java/com/team254/frc2018/Constants.java#L56
+        long startingTime = System.nanoTime();
+        int coarseIterations = 0;
+        boolean matched = false; // Stays false if there never were any matching points
 
-        for (var entry : transforms.entrySet()) {
-            var reference = entry.getKey();
-            var transform = entry.getValue();
-            double totalDifference = 0;
-            for (Point point : lidarOutput) {
-                var transformedPoint = transform.apply(point);
-                var closestPoint = reference.getClosestPoint(transformedPoint);
-                totalDifference += closestPoint.distanceTo(transformedPoint);
+        for (int level = 0; level < pyramid.length; level++) {
+            double gate = GATE_VOXELS * pyramid[level];
+            ICPSolver solver = solver(reference, level, Math.max(maxDistanceSquared, gate * gate));
+            solver.translationThreshold = pyramid[level] / 100;
+            solver.angleThreshold = solver.translationThreshold / 1000; // A rotation that moves a point a metre away as much
+            solver.reset(scanLevels[level], transform);
+            while (solver.iterations < levelIterations && System.nanoTime() - startingTime <= timeout) {
+                if (!solver.iterate()) break; // Leaves the transform where the last level put it
+                matched = true;
+                if (solver.converged) break;
             }
+            coarseIterations += solver.iterations;
+            transform = solver.getTransform();
+        }
+
+        ICPSolver solver = solver(reference, pyramid.length, maxDistanceSquared);
+        solver.reset(lidarOutput, transform);
 
-            if (totalDifference < minDistance) {
-                minDistance = totalDifference;
-                closestTransform = transform;
+        while (System.nanoTime() - startingTime <= timeout) {
+            if (!solver.iterate()) break; // Nothing to compute a transform from, so this reference can't be the match
+            matched = true;
+            if (solver.converged) break;
+            if (solver.iterations >= MIN_ITERATIONS_BEFORE_PRUNING && solver.error > bestError.get()) {
+                break; // Another reference is already better than this one can realistically get
+            }
+        }
+
+        bestError.accumulate(solver.error);
+        return new ICPResult(reference.cloud, matched ? solver.getTransform() : null, solver.error,
+                coarseIterations + solver.iterations, solver.converged);
+    }
+
+    // Null when relocalization is off, no reference had anywhere the scan fits or the deadline came first
+    private ICPResult relocalize(List<Reference> references, PointCloud lidarOutput, PointCloud[] scanLevels, long deadline) {
+        if (relocalizationError == Double.POSITIVE_INFINITY || System.nanoTime() >= deadline) {
+            return null;
+        }
+        long start = System.nanoTime();
+        relocalizations.increment();
+        Reference bestReference = null;
+        CorrelativeMatcher.Match bestMatch = null;
+        for (Reference reference : references) {
+            CorrelativeMatcher.Match match = reference.matcher.match(lidarOutput, pool, deadline);
+            if (match != null && (bestMatch == null || match.score > bestMatch.score)) {
+                bestReference = reference;
+                bestMatch = match;
             }
         }
+        relocalizationLatency.record((System.nanoTime() - start) / 1000);
+        // ICP from the search's pose gets whatever is left until the deadline
+        long budget = deadline == Long.MAX_VALUE ? timeout : Math.min(timeout, deadline - System.nanoTime());
+        if (bestMatch == null || budget <= 0) {
+            return null;
+        }
+        ICPResult result = doICP(bestReference, lidarOutput, scanLevels, bestMatch.transform,
+                new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY), budget);
+        return result.transform == null ? null : result;
+    }
 
-        return closestTransform;
+    // Point to line keeps matching against the walls at every level, only the scan gets coarser
+    private ICPSolver solver(Reference reference, int level, double maxDistanceSquared) {
+        return mode == Mode.POINT_TO_LINE ? new PointToLineSolver(reference.segments, maxDistanceSquared)
+                                          : new PointToPointSolver(reference.indexes[level], maxDistanceSquared);
     }
 
-    private boolean isConverged(Transform prev, Transform cur) {
-        return Math.abs(prev.theta - cur.theta) < 0.001 && // TODO: magic numbers...
-                Math.abs(prev.tx - cur.tx) < 0.001 &&
-                Math.abs(prev.ty - cur.ty) < 0.001;
+    private static class Reference {
+        final PointCloud cloud;
+        final SpatialIndex index; // Built once per reference for the correspondence search
+        SpatialIndex[] indexes; // Every pyramid level's downsampled reference, then index for full resolution
+        SegmentMap segments; // Only needed for POINT_TO_LINE
+        CorrelativeMatcher matcher; // Only needed for relocalization
+
+        Reference(PointCloud cloud, SegmentMap segments) {
+            this(new KdTree(cloud), segments);
+        }
+
+        Reference(SpatialIndex index, SegmentMap segments) {
+            this.cloud = index.getPoints();
+            this.index = index;
+            this.indexes = new SpatialIndex[] {index};
+            this.segments = segments;
+        }
+
+        void buildLevels(double[] voxelSizes) {
+            indexes = new SpatialIndex[voxelSizes.length + 1];
+            for (int level = 0; level < voxelSizes.length; level++) {
+                indexes[level] = new KdTree(cloud.voxelDownsample(voxelSizes[level]));
+            }
+            indexes[voxelSizes.length] = index;
+        }
     }
 }
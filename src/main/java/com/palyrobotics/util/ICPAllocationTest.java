@@ -0,0 +1,51 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class ICPAllocationTest {
+
+    @Test
+    public void iteratingDoesNotAllocate() throws IOException {
+        BufferedReader bf = new BufferedReader(new FileReader("test1cycle.txt"));
+        PointCloud reference = new PointCloud();
+        PointCloud pc = new PointCloud();
+        while (true) {
+            String line = bf.readLine();
+            if (line == null) {
+                break;
+            }
+            var split = line.split(",");
+            reference.addPolar(Float.parseFloat(split[0]), Float.parseFloat(split[1]));
+            pc.addPolar(Float.parseFloat(split[0]) + 2, Float.parseFloat(split[1]));
+        }
+        new Transform(0, -50, -10).apply(pc, pc);
+
+        ICPSolver solver = new PointToPointSolver(new KdTree(reference), Double.POSITIVE_INFINITY);
+        solver.reset(pc, new Transform());
+        for (int i = 0; i < 3000; i++) { // Let the JIT compile everything first
+            assertTrue(solver.iterate());
+        }
+
+        // Only the HotSpot bean can report allocated bytes per thread
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        long overhead = threads.getThreadAllocatedBytes(thread) - before; // What asking costs by itself
+
+        int iterations = 1000;
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            solver.iterate();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+        assertEquals("bytes allocated per iteration", 0, allocated / iterations);
+    }
+}
@@ -0,0 +1,26 @@
+package com.palyrobotics.util;
+
+/**
+ * What a single ICP run against one reference ended with
+ */
+public class ICPResult {
+
+    public final PointCloud reference;
+    public final Transform transform;
+    public final double error; // Mean distance between the lidar points and their closest reference points, lower is better
+    public final int iterations;
+    public final boolean converged; // False when it ran out of time or was cut off because another reference was already better
+
+    public ICPResult(PointCloud reference, Transform transform, double error, int iterations, boolean converged) {
+        this.reference = reference;
+        this.transform = transform;
+        this.error = error;
+        this.iterations = iterations;
+        this.converged = converged;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s error %.1f after %d iterations%s", transform, error, iterations, converged ? "" : " (not converged)");
+    }
+}
@@ -0,0 +1,59 @@
+package com.palyrobotics.util;
+
+/**
+ * One ICP run against one reference. The transform is kept as primitives instead of Transform objects
+ * and the scan is read straight from its arrays, so iterating does not allocate anything
+ */
+abstract class ICPSolver {
+
+    static final double CONVERGENCE_THRESHOLD = 0.001;
+
+    final double maxDistanceSquared;
+    final double maxDistance;
+
+    PointCloud lidarOutput;
+
+    // The current transform from the reference to the lidar
+    double theta, tx, ty;
+
+    // How small a step has to be to count as converged, mm and radians. Coarse pyramid levels loosen these
+    double translationThreshold = CONVERGENCE_THRESHOLD;
+    double angleThreshold = CONVERGENCE_THRESHOLD;
+
+    double lastMeanDist;
+    double error; // Of the transform the last iteration started from
+    int iterations;
+    boolean converged;
+
+    ICPSolver(double maxDistanceSquared) {
+        this.maxDistanceSquared = maxDistanceSquared;
+        this.maxDistance = Math.sqrt(maxDistanceSquared);
+    }
+
+    void reset(PointCloud lidarOutput, Transform start) {
+        this.lidarOutput = lidarOutput;
+        theta = start.theta;
+        tx = start.tx;
+        ty = start.ty;
+        lastMeanDist = Double.POSITIVE_INFINITY;
+        error = Double.POSITIVE_INFINITY;
+        iterations = 0;
+        converged = false;
+    }
+
+    /**
+     * Matches every lidar point to the reference and moves the transform to the best fit of those pairs
+     *
+     * @return false if there were no matching points, which leaves the transform where it was
+     */
+    abstract boolean iterate();
+
+    // Points without a correspondence count as maxDistance
+    double score(double sumDists, int unmatched) {
+        return (unmatched == 0 ? sumDists : sumDists + unmatched * maxDistance) / lidarOutput.size();
+    }
+
+    Transform getTransform() {
+        return new Transform(theta, tx, ty);
+    }
+}
@@ -1,5 +1,6 @@
 package com.palyrobotics.util;
 
+import com.palyrobotics.metrics.MetricRegistry;
 import org.junit.Test;
 
 import java.io.BufferedReader;
@@ -7,6 +8,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
 
 public class ICPTest {
 
@@ -38,4 +42,75 @@ public class ICPTest {
         ICP icp = new ICP(timeout, new HashMap<>(Map.of(reference, new Transform())));
         System.out.println(icp.doICP(pc, new Transform(0, -40, -4))); // The reason you can give it a Transform is because you most likely will know your last position
     }
-}
\ No newline at end of file
+
+    @Test
+    public void pyramidConvergesFromFarAway() throws IOException {
+        PointCloud reference = PointCloud.fromPolarFile("out.txt");
+        Transform truth = new Transform(0.6, -900, 500); // Like the robot getting bumped
+        PointCloud scan = truth.apply(reference);
+
+        ICP icp = new ICP(1_000_000_000L, new HashMap<>(Map.of(reference, new Transform())), 500);
+        icp.setPyramid();
+        ICPResult result = icp.match(scan, new Transform());
+
+        assertTrue(result.converged);
+        assertEquals(truth.theta, result.transform.theta, 0.001);
+        assertEquals(truth.tx, result.transform.tx, 1);
+        assertEquals(truth.ty, result.transform.ty, 1);
+    }
+
+    @Test
+    public void relocalizesWhenLost() throws IOException {
+        PointCloud reference = PointCloud.fromPolarFile("out.txt");
+        Transform truth = new Transform(2.8, 700, -1200); // Turned around somewhere else, no pyramid gets back from that
+        PointCloud scan = truth.apply(reference);
+
+        ICP icp = new ICP(1_000_000_000L, new HashMap<>(Map.of(reference, new Transform())));
+        icp.setRelocalization();
+        ICPResult result = icp.match(scan, new Transform());
+
+        assertEquals(truth.theta, result.transform.theta, 0.001);
+        assertEquals(truth.tx, result.transform.tx, 2);
+        assertEquals(truth.ty, result.transform.ty, 2);
+    }
+
+    @Test
+    public void relocalizationStopsAtTheDeadline() throws IOException {
+        PointCloud reference = PointCloud.fromPolarFile("out.txt");
+        PointCloud scan = new Transform(2.8, 700, -1200).apply(reference);
+
+        // Out of time before the first square is split, so not a single full resolution pose gets scored
+        assertNull(new CorrelativeMatcher(new KdTree(reference)).match(scan, ForkJoinPool.commonPool(), System.nanoTime() - 1));
+
+        ICP icp = new ICP(1_000_000_000L, new HashMap<>(Map.of(reference, new Transform())));
+        icp.setRelocalization();
+        MetricRegistry registry = new MetricRegistry();
+        icp.setMetrics(registry, "icp");
+        try {
+            // A microsecond is over before ICP's first iteration is, so it is lost and relocalization would be next
+            assertFalse(icp.match(scan, new Transform(), System.nanoTime() + 1000).converged);
+        } catch (NoMatchException e) {
+            // Also fine, as long as it didn't search
+        }
+        assertEquals(0, registry.counter("icp.relocalizations").get());
+
+        try {
+            icp.match(scan, new Transform(), System.nanoTime() - 1);
+            fail("Matched after the deadline");
+        } catch (NoMatchException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void voxelDownsampleKeepsCentroids() {
+        PointCloud cloud = new PointCloud(new Point(10, 10), new Point(30, 30), new Point(-10, 10), new Point(150, 0));
+        PointCloud downsampled = cloud.voxelDownsample(100);
+        assertEquals(3, downsampled.size());
+        boolean found = false;
+        for (int i = 0; i < downsampled.size(); i++) {
+            found |= downsampled.getX(i) == 20 && downsampled.getY(i) == 20;
+        }
+        assertTrue(found);
+    }
+}
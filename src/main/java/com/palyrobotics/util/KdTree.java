@@ -0,0 +1,119 @@
+package com.palyrobotics.util;
+
+/**
+ * A balanced 2d tree stored in flat arrays. Every range [lo, hi) has its splitting point in the middle,
+ * with the smaller coordinates to the left, and the splitting axis alternates between x and y every level.
+ * The reference cloud must not be changed after the tree is built
+ */
+public class KdTree implements SpatialIndex {
+
+    private final PointCloud points;
+    private final double[] xs, ys; // In tree order
+    private final int[] indices; // Tree order to the index in points
+
+    public KdTree(PointCloud points) {
+        this.points = points;
+        int size = points.size();
+        xs = new double[size];
+        ys = new double[size];
+        indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+        }
+
+        build(0, size, true);
+        for (int i = 0; i < size; i++) {
+            xs[i] = points.getX(indices[i]);
+            ys[i] = points.getY(indices[i]);
+        }
+    }
+
+    @Override
+    public PointCloud getPoints() {
+        return points;
+    }
+
+    public int size() {
+        return indices.length;
+    }
+
+    @Override
+    public int nearest(double x, double y, double maxDistanceSquared) {
+        int closest = nearest(0, indices.length, true, x, y, -1, maxDistanceSquared);
+        return closest < 0 ? -1 : indices[closest];
+    }
+
+    private int nearest(int lo, int hi, boolean splitX, double x, double y, int closest, double minDistance) {
+        if (lo >= hi) {
+            return closest;
+        }
+        int mid = (lo + hi) >>> 1;
+        double dx = x - xs[mid];
+        double dy = y - ys[mid];
+        double distance = dx * dx + dy * dy;
+        if (distance < minDistance) {
+            closest = mid;
+            minDistance = distance;
+        }
+
+        double delta = splitX ? dx : dy;
+        // Search the side the query is on first, the other side only matters if the splitting line is closer than the best so far
+        int found = delta < 0 ? nearest(lo, mid, !splitX, x, y, closest, minDistance)
+                              : nearest(mid + 1, hi, !splitX, x, y, closest, minDistance);
+        if (found != closest) {
+            closest = found;
+            minDistance = distanceSquared(found, x, y);
+        }
+        if (delta * delta < minDistance) {
+            closest = delta < 0 ? nearest(mid + 1, hi, !splitX, x, y, closest, minDistance)
+                                : nearest(lo, mid, !splitX, x, y, closest, minDistance);
+        }
+        return closest;
+    }
+
+    private double distanceSquared(int i, double x, double y) {
+        double dx = x - xs[i];
+        double dy = y - ys[i];
+        return dx * dx + dy * dy;
+    }
+
+    private void build(int lo, int hi, boolean splitX) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, splitX);
+        build(lo, mid, !splitX);
+        build(mid + 1, hi, !splitX);
+    }
+
+    // Quickselect on indices so that the k-th element is in place with smaller coordinates before it
+    private void select(int lo, int hi, int k, boolean splitX) {
+        while (hi > lo) {
+            double pivot = coordinate(indices[(lo + hi) >>> 1], splitX);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (coordinate(indices[i], splitX) < pivot) i++;
+                while (coordinate(indices[j], splitX) > pivot) j--;
+                if (i <= j) {
+                    int temp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = temp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double coordinate(int i, boolean splitX) {
+        return splitX ? points.getX(i) : points.getY(i);
+    }
+}
@@ -0,0 +1,40 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KdTreeTest {
+
+    @Test
+    public void matchesLinearScan() {
+        Random random = new Random(8);
+        PointCloud cloud = new PointCloud();
+        for (int i = 0; i < 800; i++) {
+            cloud.addPoint(random.nextInt(2000) - 1000, random.nextInt(2000) - 1000); // Integers so there are duplicates on both axes
+        }
+        KdTree tree = new KdTree(cloud);
+
+        for (int i = 0; i < 2000; i++) {
+            double x = random.nextDouble() * 2400 - 1200, y = random.nextDouble() * 2400 - 1200;
+            int expected = cloud.getClosestIndex(x, y);
+            int actual = tree.nearest(x, y, Double.POSITIVE_INFINITY);
+            assertEquals(distanceSquared(cloud, expected, x, y), distanceSquared(cloud, actual, x, y), 1e-9);
+        }
+    }
+
+    @Test
+    public void respectsMaxDistance() {
+        KdTree tree = new KdTree(new PointCloud(new Point(0, 0), new Point(10, 0)));
+        assertEquals(1, tree.nearest(9, 0, 4));
+        assertEquals(-1, tree.nearest(5, 5, 25));
+        assertEquals(-1, new KdTree(new PointCloud()).nearest(0, 0, Double.POSITIVE_INFINITY));
+    }
+
+    private static double distanceSquared(PointCloud cloud, int i, double x, double y) {
+        double dx = cloud.getX(i) - x, dy = cloud.getY(i) - y;
+        return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,221 @@
+package com.palyrobotics.util;
+
+import com.palyrobotics.metrics.Counter;
+import com.palyrobotics.metrics.Histogram;
+import com.palyrobotics.metrics.MetricRegistry;
+
+/**
+ * Runs ICP on a thread of its own, always on the newest revolution from an assembler, so a slow match skips revolutions
+ * instead of building a backlog and delaying whatever receives the samples.
+ * <p>
+ * Every revolution has a deadline: a fraction of the revolution period after the assembler completed it, since the next
+ * one is about to make its pose stale. ICP gets whatever is left until then (up to its own timeout), a revolution with
+ * less than a ms left by the time it is picked up is dropped as stale, and a pose that still came out late is counted
+ * as a deadline miss. The period is measured from the revolutions, so it follows the lidar's speed.
+ * <p>
+ * ICP starts from where the last two converged poses say the lidar is by now at the same velocity, instead of from the
+ * last pose, so a moving robot starts closer and needs fewer iterations
+ */
+public class LocalizationWorker {
+
+    public static final long DEFAULT_PERIOD = 1_000_000_000 / 7; // ns, until two revolutions have been seen
+    public static final double DEFAULT_BUDGET_FRACTION = 0.8; // Of the period, the rest is for whatever uses the pose
+
+    private static final long MIN_BUDGET = 1_000_000; // ns
+    private static final double PERIOD_SMOOTHING = 0.1;
+    private static final long MAX_PREDICTION_GAP = 500_000_000; // ns, older poses don't say much about the velocity
+    private static final long WAIT = 100_000_000; // ns, how long to wait for a revolution before checking if it should stop
+
+    private final RevolutionAssembler assembler;
+    private final ICP icp;
+    private final Deskew deskew; // null if the revolutions aren't deskewed
+    private final PoseListener listener;
+    private double budgetFraction = DEFAULT_BUDGET_FRACTION;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    // Worker thread only
+    private Transform last = new Transform(), previous; // previous is null when the two can't be extrapolated from
+    private boolean lastConverged;
+    private long lastTime, previousTime;
+    private long lastId, lastTimestamp;
+    private volatile double period = DEFAULT_PERIOD;
+
+    // Not registered anywhere until setMetrics, same as ICP
+    private Counter poses = new Counter(), stale = new Counter(), misses = new Counter(), failures = new Counter();
+    private Histogram latency = new Histogram(), budget = new Histogram();
+
+    /**
+     * @param deskew gets the velocity from every converged pose, null if the assembler's filter doesn't have one
+     */
+    public LocalizationWorker(RevolutionAssembler assembler, ICP icp, Deskew deskew, PoseListener listener) {
+        this.assembler = assembler;
+        this.icp = icp;
+        this.deskew = deskew;
+        this.listener = listener;
+    }
+
+    // Before start
+    public void setBudgetFraction(double budgetFraction) {
+        this.budgetFraction = budgetFraction;
+    }
+
+    /**
+     * Records into the registry under the prefix: poses, stale (revolutions dropped for being too late), deadline_misses,
+     * failures (no matching points, or an exception, which is printed), latency_us (from the revolution being completed to its pose) and budget_us (what
+     * ICP was given)
+     */
+    public void setMetrics(MetricRegistry registry, String prefix) {
+        poses = registry.counter(prefix + ".poses");
+        stale = registry.counter(prefix + ".stale");
+        misses = registry.counter(prefix + ".deadline_misses");
+        failures = registry.counter(prefix + ".failures");
+        latency = registry.histogram(prefix + ".latency_us");
+        budget = registry.histogram(prefix + ".budget_us");
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "LocalizationWorker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            thread = this.thread;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            Revolution revolution;
+            try {
+                revolution = assembler.awaitLatest(WAIT);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (revolution != null) {
+                localize(revolution);
+            }
+        }
+    }
+
+    private void localize(Revolution revolution) {
+        measurePeriod(revolution);
+        long deadline = revolution.getTimestamp() + (long) (period * budgetFraction);
+        long remaining = deadline - System.nanoTime();
+        if (remaining < MIN_BUDGET) {
+            stale.increment(); // The next revolution is nearly here, it gets the time instead
+            return;
+        }
+        budget.record(remaining / 1000);
+
+        long time = time(revolution);
+        ICPResult result;
+        try {
+            result = icp.match(revolution.getPoints(), predict(time), deadline);
+        } catch (NoMatchException e) { // The next revolution starts from the last good pose
+            failures.increment();
+            forgetMotion();
+            return;
+        } catch (RuntimeException e) { // A bug, but one bad revolution shouldn't stop localization
+            e.printStackTrace();
+            failures.increment();
+            forgetMotion();
+            return;
+        }
+        long finished = System.nanoTime();
+        if (finished > deadline) {
+            misses.increment();
+        }
+        latency.record((finished - revolution.getTimestamp()) / 1000);
+
+        previous = result.converged && lastConverged ? last : null;
+        lastConverged = result.converged;
+        previousTime = lastTime;
+        last = result.transform;
+        lastTime = time;
+        if (deskew != null) {
+            if (result.converged) {
+                deskew.update(result.transform, time);
+            } else {
+                deskew.reset();
+            }
+        }
+        poses.increment();
+        listener.onPose(revolution, result);
+    }
+
+    private void forgetMotion() {
+        previous = null;
+        lastConverged = false;
+        if (deskew != null) {
+            deskew.reset();
+        }
+    }
+
+    // Skipped and dropped revolutions still count in the ids, so the gap is divided between all of them
+    private void measurePeriod(Revolution revolution) {
+        if (lastId > 0 && revolution.getId() > lastId) {
+            double gap = (double) (revolution.getTimestamp() - lastTimestamp) / (revolution.getId() - lastId);
+            period += (gap - period) * PERIOD_SMOOTHING;
+        }
+        lastId = revolution.getId();
+        lastTimestamp = revolution.getTimestamp();
+    }
+
+    // Where the last pose would be by time, at the velocity between the last two
+    private Transform predict(long time) {
+        long gap = lastTime - previousTime;
+        if (previous == null || gap <= 0 || gap > MAX_PREDICTION_GAP || time - lastTime > MAX_PREDICTION_GAP) {
+            return last;
+        }
+        // The lidar's motion between the two in the frame of the first, like Deskew works it out, scaled to the time since
+        Transform motion = previous.compose(last.inverse());
+        double scale = (double) (time - lastTime) / gap;
+        double angle = Math.atan2(Math.sin(motion.theta), Math.cos(motion.theta));
+        Transform ahead = new Transform(angle * scale, motion.tx * scale, motion.ty * scale);
+        return ahead.inverse().compose(last);
+    }
+
+    // The samples' clock when they have times, which deskew needs anyway, otherwise when the revolution was completed
+    private static long time(Revolution revolution) {
+        return revolution.getEndTime() != 0 ? revolution.getEndTime() : revolution.getTimestamp();
+    }
+
+    // ns between revolutions as measured so far
+    public double getPeriod() {
+        return period;
+    }
+
+    public long getPoses() {
+        return poses.get();
+    }
+
+    public long getStale() {
+        return stale.get();
+    }
+
+    public long getDeadlineMisses() {
+        return misses.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+}
@@ -0,0 +1,83 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LocalizationWorkerTest {
+
+    // A 4m by 3m room with the lidar off centre, one sample every half degree
+    private static void revolution(RevolutionAssembler assembler, Transform transform) {
+        Transform pose = transform.inverse();
+        for (int i = 0; i < 720; i++) {
+            double angle = Math.toRadians(i / 2.0) + pose.theta;
+            double dx = Math.cos(angle), dy = Math.sin(angle);
+            double toX = dx > 0 ? (2000 - pose.tx) / dx : (-2000 - pose.tx) / dx;
+            double toY = dy > 0 ? (1500 - pose.ty) / dy : (-1500 - pose.ty) / dy;
+            assembler.addSample(i / 2.0f, (float) Math.min(toX, toY));
+        }
+        assembler.completeRevolution();
+    }
+
+    private static PointCloud room() {
+        PointCloud room = new PointCloud();
+        for (int x = -2000; x <= 2000; x += 20) {
+            room.addPoint(x, -1500);
+            room.addPoint(x, 1500);
+        }
+        for (int y = -1500; y <= 1500; y += 20) {
+            room.addPoint(-2000, y);
+            room.addPoint(2000, y);
+        }
+        return room;
+    }
+
+    @Test
+    public void dropsRevolutionsWhoseDeadlinePassed() throws InterruptedException {
+        RevolutionAssembler assembler = new RevolutionAssembler();
+        ICP icp = new ICP(100_000_000, Double.POSITIVE_INFINITY, new KdTree(room()));
+        LocalizationWorker worker = new LocalizationWorker(assembler, icp, null, (revolution, result) -> {});
+
+        revolution(assembler, new Transform(0.1, 150, -100));
+        Thread.sleep(LocalizationWorker.DEFAULT_PERIOD / 1_000_000 + 10); // Its deadline passes before anything picks it up
+        worker.start();
+        try {
+            long until = System.nanoTime() + 5_000_000_000L;
+            while (worker.getStale() == 0 && System.nanoTime() < until) {
+                Thread.sleep(1);
+            }
+            assertEquals(1, worker.getStale());
+            assertEquals(0, worker.getPoses());
+            assertEquals(0, worker.getDeadlineMisses());
+        } finally {
+            worker.stop();
+        }
+    }
+
+    @Test
+    public void matchesARevolutionBeforeItsDeadline() throws InterruptedException {
+        RevolutionAssembler assembler = new RevolutionAssembler();
+        ICP icp = new ICP(1_000_000_000, Double.POSITIVE_INFINITY, new KdTree(room()));
+        BlockingQueue<ICPResult> results = new ArrayBlockingQueue<>(10);
+        LocalizationWorker worker = new LocalizationWorker(assembler, icp, null, (revolution, result) -> results.add(result));
+        worker.setBudgetFraction(100); // Seconds, so a busy machine can't make it stale
+        worker.start();
+        try {
+            Transform truth = new Transform(0.1, 150, -100);
+            revolution(assembler, truth);
+            ICPResult result = results.poll(10, TimeUnit.SECONDS);
+            assertNotNull(result);
+            assertEquals(truth.tx, result.transform.tx, 20);
+            assertEquals(truth.ty, result.transform.ty, 20);
+            assertEquals(truth.theta, result.transform.theta, 0.02);
+            assertEquals(1, worker.getPoses());
+            assertEquals(0, worker.getStale());
+        } finally {
+            worker.stop();
+        }
+    }
+}
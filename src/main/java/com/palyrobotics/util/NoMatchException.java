@@ -0,0 +1,9 @@
+package com.palyrobotics.util;
+
+// ICP had nothing to compute a transform from, or no time left to. Anything else thrown from a match is a bug
+public class NoMatchException extends RuntimeException {
+
+    public NoMatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,273 @@
+package com.palyrobotics.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map built while driving, for when the field doesn't look like the reference scans anymore. Every cell holds the log
+ * odds of it being occupied: a scan point adds to its cell and every cell the ray passed through on the way there is
+ * taken from, so things that moved get cleared again.
+ * <p>
+ * Cells are kept in square tiles of floats that are only made once a ray reaches them, and only so many tiles are kept
+ * at once. When another one is needed the least recently used tile goes, written to the spill directory if there is
+ * one so it comes back when the robot does, and its array becomes the new tile. So memory stays the same however long
+ * the robot drives, and rays are traced cell by cell up to the max range, so a scan costs the same wherever it is.
+ * Whether a tile was spilled is asked of the directory, not kept in memory. The directory itself grows with the area
+ * driven over, a 16KB file for every tile that was ever evicted.
+ * <p>
+ * Snapshots of the occupied cells can be used as ICP references. One thread at a time
+ */
+public class OccupancyGrid {
+
+    public static final double DEFAULT_RESOLUTION = 25; // mm per cell
+    public static final int TILE_SIZE = 64; // Cells across, so a tile is 16KB
+    public static final int DEFAULT_MAX_TILES = 256; // 4MB of tiles, 25m by 25m with the default resolution
+    public static final double DEFAULT_MAX_RANGE = 8000; // mm, rays stop here and further points don't count as hits
+
+    private static final float HIT = 0.85f, MISS = -0.4f; // Log odds of 0.7 and 0.4
+    private static final float MIN = -2, MAX = 3.5f; // Clamped so a cell that has been there a while can still change
+    private static final float OCCUPIED = 1; // More than one hit over the misses
+
+    private final double resolution, maxRange;
+    private final int maxTiles;
+    private final Path spillDirectory; // null drops evicted tiles
+    private final ByteBuffer spillBuffer;
+    private final PointCloud world = new PointCloud(), downsampled = new PointCloud();
+
+    // Access ordered, so the first entry is always the one to evict
+    private final LinkedHashMap<Long, float[]> tiles;
+    private float[] spare; // The last evicted tile's array, the next new tile reuses it
+
+    // Rays mostly stay in one tile for a while, so the last one is kept out of the map lookup
+    private long lastKey;
+    private float[] lastTile;
+
+    private long insertedScans, tilesSpilled, tilesLoaded, tilesDropped;
+
+    public OccupancyGrid() {
+        this(DEFAULT_RESOLUTION, DEFAULT_MAX_RANGE, DEFAULT_MAX_TILES, null);
+    }
+
+    /**
+     * @param maxTiles at least 4. Should cover a square twice the max range across (121 tiles with the defaults), or
+     *                 every scan spills and reloads the tiles it reaches
+     * @param spillDirectory where evicted tiles are written, null to forget them. Tiles from an earlier run in it are
+     *                       deleted, they would be from another pose
+     */
+    public OccupancyGrid(double resolution, double maxRange, int maxTiles, Path spillDirectory) {
+        if (maxTiles < 4) {
+            throw new IllegalArgumentException("Need at least 4 tiles, got " + maxTiles);
+        }
+        this.resolution = resolution;
+        this.maxRange = maxRange;
+        this.maxTiles = maxTiles;
+        this.spillDirectory = spillDirectory;
+        this.spillBuffer = spillDirectory != null ? ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * 4) : null;
+        this.tiles = new LinkedHashMap<>(maxTiles * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, float[]> eldest) {
+                if (size() <= OccupancyGrid.this.maxTiles) {
+                    return false;
+                }
+                evict(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+        if (spillDirectory != null) {
+            try {
+                Files.createDirectories(spillDirectory);
+                try (DirectoryStream<Path> old = Files.newDirectoryStream(spillDirectory, "*.tile")) {
+                    for (Path file : old) {
+                        Files.delete(file);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Traces every point of a scan from the lidar
+     *
+     * @param transform what ICP matched the scan with, taking the map into the scan's frame
+     */
+    public void insert(PointCloud scan, Transform transform) {
+        Transform pose = transform.inverse();
+        pose.apply(scan, world);
+        // In the map's cells, so every cell the scan hit gets one ray and the same cells aren't traced over again
+        world.voxelDownsample(resolution, downsampled);
+        int startX = cell(pose.tx), startY = cell(pose.ty);
+        for (int i = 0; i < downsampled.size(); i++) {
+            double dx = downsampled.getX(i) - pose.tx, dy = downsampled.getY(i) - pose.ty;
+            double range = Math.hypot(dx, dy);
+            boolean hit = range <= maxRange;
+            if (!hit) { // Only trace free space up to the max range
+                dx *= maxRange / range;
+                dy *= maxRange / range;
+            }
+            trace(startX, startY, cell(pose.tx + dx), cell(pose.ty + dy), hit);
+        }
+        insertedScans++;
+    }
+
+    // Bresenham from the lidar's cell, every cell before the end is a miss
+    private void trace(int x, int y, int endX, int endY, boolean hit) {
+        int dx = Math.abs(endX - x), dy = -Math.abs(endY - y);
+        int stepX = x < endX ? 1 : -1, stepY = y < endY ? 1 : -1;
+        int error = dx + dy;
+        while (x != endX || y != endY) {
+            update(x, y, MISS);
+            int doubled = 2 * error;
+            if (doubled >= dy) {
+                error += dy;
+                x += stepX;
+            }
+            if (doubled <= dx) {
+                error += dx;
+                y += stepY;
+            }
+        }
+        update(x, y, hit ? HIT : MISS);
+    }
+
+    private void update(int x, int y, float change) {
+        float[] tile = tile(x, y, true);
+        int i = Math.floorMod(y, TILE_SIZE) * TILE_SIZE + Math.floorMod(x, TILE_SIZE);
+        tile[i] = Math.max(MIN, Math.min(MAX, tile[i] + change));
+    }
+
+    // The tile the cell is in, null if it was never reached and create is false
+    private float[] tile(int x, int y, boolean create) {
+        long key = (long) Math.floorDiv(x, TILE_SIZE) << 32 | (Math.floorDiv(y, TILE_SIZE) & 0xFFFFFFFFL);
+        if (lastTile != null && key == lastKey) {
+            return lastTile;
+        }
+        float[] tile = tiles.get(key);
+        if (tile == null) {
+            boolean spilled = spillDirectory != null && Files.exists(spillFile(key));
+            if (!spilled && !create) {
+                return null;
+            }
+            tile = spare != null ? spare : new float[TILE_SIZE * TILE_SIZE];
+            spare = null;
+            if (spilled) {
+                load(key, tile);
+            } else {
+                Arrays.fill(tile, 0);
+            }
+            tiles.put(key, tile); // Can evict, but never this tile or the one before it
+        }
+        lastKey = key;
+        lastTile = tile;
+        return tile;
+    }
+
+    private void evict(long key, float[] tile) {
+        if (spillDirectory != null) {
+            spillBuffer.clear();
+            spillBuffer.asFloatBuffer().put(tile);
+            try (FileChannel channel = FileChannel.open(spillFile(key), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (spillBuffer.hasRemaining()) {
+                    channel.write(spillBuffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            tilesSpilled++;
+        } else {
+            tilesDropped++;
+        }
+        spare = tile;
+    }
+
+    private void load(long key, float[] tile) {
+        spillBuffer.clear();
+        try (FileChannel channel = FileChannel.open(spillFile(key), StandardOpenOption.READ)) {
+            while (spillBuffer.hasRemaining()) {
+                if (channel.read(spillBuffer) < 0) {
+                    throw new IOException(spillFile(key) + " is cut off");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        spillBuffer.flip();
+        spillBuffer.asFloatBuffer().get(tile);
+        tilesLoaded++;
+    }
+
+    private Path spillFile(long key) {
+        return spillDirectory.resolve((int) (key >> 32) + "_" + (int) key + ".tile");
+    }
+
+    private int cell(double mm) {
+        return (int) Math.floor(mm / resolution);
+    }
+
+    // 0 is unknown, positive is occupied and negative is free. Reads back spilled tiles, which can evict others
+    public float getLogOdds(double x, double y) {
+        int cellX = cell(x), cellY = cell(y);
+        float[] tile = tile(cellX, cellY, false);
+        return tile == null ? 0 : tile[Math.floorMod(cellY, TILE_SIZE) * TILE_SIZE + Math.floorMod(cellX, TILE_SIZE)];
+    }
+
+    public boolean isOccupied(double x, double y) {
+        return getLogOdds(x, y) >= OCCUPIED;
+    }
+
+    /**
+     * The centres of the occupied cells in the tiles that are in memory, which are the ones the robot was close to last.
+     * Tiles that were spilled are left out, the robot is too far away from them to see them anyway
+     */
+    public PointCloud snapshot() {
+        PointCloud out = new PointCloud();
+        for (Map.Entry<Long, float[]> entry : tiles.entrySet()) {
+            long key = entry.getKey();
+            double originX = (int) (key >> 32) * TILE_SIZE * resolution, originY = (int) key * TILE_SIZE * resolution;
+            float[] tile = entry.getValue();
+            for (int i = 0; i < tile.length; i++) {
+                if (tile[i] >= OCCUPIED) {
+                    out.addPoint(originX + (i % TILE_SIZE + 0.5) * resolution, originY + (i / TILE_SIZE + 0.5) * resolution);
+                }
+            }
+        }
+        return out;
+    }
+
+    public double getResolution() {
+        return resolution;
+    }
+
+    // Tiles in memory, never more than the max
+    public int getTiles() {
+        return tiles.size();
+    }
+
+    public long getInsertedScans() {
+        return insertedScans;
+    }
+
+    public long getTilesSpilled() {
+        return tilesSpilled;
+    }
+
+    public long getTilesLoaded() {
+        return tilesLoaded;
+    }
+
+    // Evicted without a spill directory, those parts of the map are gone
+    public long getTilesDropped() {
+        return tilesDropped;
+    }
+}
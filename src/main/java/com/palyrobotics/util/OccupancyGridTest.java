@@ -0,0 +1,72 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class OccupancyGridTest {
+
+    // A wall 2m in front of the lidar, 2m long
+    private static PointCloud wall() {
+        PointCloud scan = new PointCloud();
+        for (int y = -1000; y <= 1000; y += 10) {
+            scan.addPoint(2000, y);
+        }
+        return scan;
+    }
+
+    @Test
+    public void marksWallsAndTheSpaceBeforeThem() {
+        OccupancyGrid grid = new OccupancyGrid();
+        Transform transform = new Transform(0.3, 100, -200); // The map into the lidar's frame
+        PointCloud scan = wall();
+        for (int i = 0; i < 3; i++) {
+            grid.insert(scan, transform);
+        }
+
+        Transform pose = transform.inverse();
+        Point onWall = pose.apply(new Point(2000, 0)), before = pose.apply(new Point(1000, 0)), behind = pose.apply(new Point(3000, 0));
+        assertTrue(grid.isOccupied(onWall.x, onWall.y));
+        assertTrue(grid.getLogOdds(before.x, before.y) < 0);
+        assertEquals(0, grid.getLogOdds(behind.x, behind.y), 0);
+
+        // Every occupied cell is on the wall
+        PointCloud snapshot = grid.snapshot();
+        assertTrue(snapshot.size() > 50);
+        for (int i = 0; i < snapshot.size(); i++) {
+            Point point = transform.apply(snapshot.getPoint(i));
+            assertEquals(2000, point.x, 2 * grid.getResolution());
+        }
+    }
+
+    @Test
+    public void evictedTilesComeBackFromTheSpill() throws IOException {
+        Path directory = Files.createTempDirectory("tiles");
+        OccupancyGrid grid = new OccupancyGrid(OccupancyGrid.DEFAULT_RESOLUTION, 3000, 4, directory);
+        grid.insert(wall(), new Transform());
+        float onWall = grid.getLogOdds(2000, 0), before = grid.getLogOdds(1000, 0);
+
+        // Far enough away that none of the first tiles are still needed
+        for (int i = 1; i <= 5; i++) {
+            grid.insert(wall(), new Transform(0, -100000 * i, 0));
+            assertTrue(grid.getTiles() <= 4);
+        }
+        assertTrue(grid.getTilesSpilled() > 0);
+        assertEquals(0, grid.getTilesDropped());
+
+        assertEquals(onWall, grid.getLogOdds(2000, 0), 0);
+        assertEquals(before, grid.getLogOdds(1000, 0), 0);
+        assertTrue(grid.getTilesLoaded() > 0);
+
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
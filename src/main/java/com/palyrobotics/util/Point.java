@@ -10,7 +10,14 @@ public class Point {
     }
 
     public double distanceTo(Point p) {
-        return Math.sqrt(Math.pow(x - p.x, 2) + Math.pow(y - p.y, 2));
+        return Math.sqrt(distanceSquaredTo(p));
+    }
+
+    // Cheaper than distanceTo when only comparing distances
+    public double distanceSquaredTo(Point p) {
+        double dx = x - p.x;
+        double dy = y - p.y;
+        return dx * dx + dy * dy;
     }
 
     public static Point fromPolar(float[] point) {
@@ -1,38 +1,105 @@
 package com.palyrobotics.util;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
 import java.util.function.Consumer;
 
+/**
+ * Points are stored as parallel x and y arrays instead of Point objects so a cloud can be cleared and refilled every
+ * revolution without creating garbage. The Iterable<Point> view is still here, but it creates a Point for every element,
+ * so hot loops should use size(), getX(i) and getY(i) or forEachPoint instead
+ */
 public class PointCloud implements Iterable<Point> {
 
-    private ArrayList<Point> points;
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final long VOXEL_MASK = (1 << 21) - 1; // 21 bits each for the square's x, y and the point's index
+    private static final long VOXEL_OFFSET = 1 << 20; // So negative squares pack as positive numbers
+
+    private double[] xs;
+    private double[] ys;
+    private int size;
 
     public PointCloud(Point... points) {
-        this.points = new ArrayList<Point>(Arrays.asList(points));
+        this(Math.max(points.length, DEFAULT_CAPACITY));
+        for (Point p : points) {
+            addPoint(p);
+        }
     }
 
     public PointCloud(ArrayList<Point> points) {
-        this.points = points;
+        this(Math.max(points.size(), DEFAULT_CAPACITY));
+        for (Point p : points) {
+            addPoint(p);
+        }
+    }
+
+    public PointCloud(int capacity) {
+        xs = new double[capacity];
+        ys = new double[capacity];
+    }
+
+    // Reads a scan saved as "angle,distance" lines, like out.txt. Distances of 0 are samples where nothing came back, those are skipped
+    public static PointCloud fromPolarFile(String file) throws IOException {
+        PointCloud cloud = new PointCloud();
+        try (BufferedReader bf = new BufferedReader(new FileReader(file))) {
+            while (true) {
+                String line = bf.readLine();
+                if (line == null) {
+                    break;
+                }
+
+                var split = line.split(",");
+                float distance = Float.parseFloat(split[1]);
+                if (distance > 0) {
+                    cloud.addPolar(Float.parseFloat(split[0]), distance);
+                }
+            }
+        }
+        return cloud;
+    }
+
+    // Writes the points as "angle,distance" lines around the origin, so fromPolarFile and everything that takes a reference reads it back
+    public void savePolarFile(String file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (int i = 0; i < size; i++) {
+                out.printf(Locale.ROOT, "%f,%f%n", Math.toDegrees(Math.atan2(ys[i], xs[i])), Math.hypot(xs[i], ys[i]));
+            }
+        }
     }
 
     public Point getClosestPoint(Point point) {
+        int closest = getClosestIndex(point.x, point.y);
+        return closest < 0 ? null : getPoint(closest);
+    }
+
+    // Linear scan on squared distances, returns -1 if the cloud is empty
+    public int getClosestIndex(double x, double y) {
         double minDistance = Double.POSITIVE_INFINITY;
-        Point closestPoint = null;
-        for (Point p: points) {
-            if (minDistance > point.distanceTo(p)) { // TODO: determine if < or <= is better in this scenario, guessing it doesnt matter
-                minDistance = point.distanceTo(p);
-                closestPoint = p;
+        int closest = -1;
+        for (int i = 0; i < size; i++) {
+            double dx = xs[i] - x;
+            double dy = ys[i] - y;
+            double distance = dx * dx + dy * dy;
+            if (minDistance > distance) {
+                minDistance = distance;
+                closest = i;
             }
         }
-        return closestPoint;
+        return closest;
     }
 
     public boolean contains(Point point) {
-        for (Point p : points) {
-            if (point.y == p.y && point.x == p.x) {
+        for (int i = 0; i < size; i++) {
+            if (point.y == ys[i] && point.x == xs[i]) {
                 return true;
             }
         }
@@ -40,20 +107,148 @@ public class PointCloud implements Iterable<Point> {
     }
 
     public int size() {
-        return points.size();
+        return size;
+    }
+
+    public int capacity() {
+        return xs.length;
+    }
+
+    public double getX(int i) {
+        return xs[i];
+    }
+
+    public double getY(int i) {
+        return ys[i];
+    }
+
+    public Point getPoint(int i) {
+        return new Point(xs[i], ys[i]);
+    }
+
+    public void set(int i, double x, double y) {
+        xs[i] = x;
+        ys[i] = y;
     }
 
     public void addPoint(Point point) {
-        points.add(point);
+        addPoint(point.x, point.y);
+    }
+
+    public void addPoint(double x, double y) {
+        if (size == xs.length) {
+            ensureCapacity(Math.max(size * 2, DEFAULT_CAPACITY));
+        }
+        xs[size] = x;
+        ys[size] = y;
+        size++;
+    }
+
+    // Same as addPoint(Point.fromPolar(thetaDegrees, r)) without the Point
+    public void addPolar(double thetaDegrees, double r) {
+        double theta = Math.toRadians(thetaDegrees);
+        addPoint(r * Math.cos(theta), r * Math.sin(theta));
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > xs.length) {
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+    }
+
+    // Sets the size without touching the values, used when something else writes straight into the arrays
+    void setSize(int size) {
+        ensureCapacity(size);
+        this.size = size;
+    }
+
+    // Keeps the arrays around so the next revolution can reuse them
+    public void clear() {
+        size = 0;
+    }
+
+    // The raw arrays are only valid up to size()
+    double[] xs() {
+        return xs;
+    }
+
+    double[] ys() {
+        return ys;
+    }
+
+    /**
+     * Replaces every group of points that fall into the same voxelSize square with their centroid, writing into out.
+     * The centroids come out sorted by square instead of in scan order
+     */
+    public void voxelDownsample(double voxelSize, PointCloud out) {
+        out.clear();
+        if (size == 0) {
+            return;
+        }
+        // Square coordinates and the point's index packed into one long, so sorting groups the squares without objects
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            long cellX = (long) Math.floor(xs[i] / voxelSize) + VOXEL_OFFSET;
+            long cellY = (long) Math.floor(ys[i] / voxelSize) + VOXEL_OFFSET;
+            keys[i] = (cellX & VOXEL_MASK) << 42 | (cellY & VOXEL_MASK) << 21 | i;
+        }
+        Arrays.sort(keys);
+
+        double sumX = 0, sumY = 0;
+        int count = 0;
+        long cell = keys[0] >>> 21;
+        for (long key : keys) {
+            if (key >>> 21 != cell) {
+                out.addPoint(sumX / count, sumY / count);
+                sumX = sumY = 0;
+                count = 0;
+                cell = key >>> 21;
+            }
+            int i = (int) (key & VOXEL_MASK);
+            sumX += xs[i];
+            sumY += ys[i];
+            count++;
+        }
+        out.addPoint(sumX / count, sumY / count);
+    }
+
+    public PointCloud voxelDownsample(double voxelSize) {
+        PointCloud out = new PointCloud(size);
+        voxelDownsample(voxelSize, out);
+        return out;
+    }
+
+    public void forEachPoint(PointConsumer action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(xs[i], ys[i]);
+        }
     }
 
     @Override
     public Iterator<Point> iterator() {
-        return points.iterator();
+        return new Iterator<>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            public Point next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                return getPoint(i++);
+            }
+        };
     }
 
     @Override
     public void forEach(Consumer<? super Point> action) {
-        points.forEach(action);
+        for (int i = 0; i < size; i++) {
+            action.accept(getPoint(i));
+        }
     }
 }
@@ -0,0 +1,7 @@
+package com.palyrobotics.util;
+
+// Takes a point as its coordinates so iterating a PointCloud does not need Point objects
+@FunctionalInterface
+public interface PointConsumer {
+    void accept(double x, double y);
+}
@@ -0,0 +1,60 @@
+package com.palyrobotics.util;
+
+/**
+ * The latest points with when they came in, for drawing. One thread adds, another reads without locking:
+ * a slot is written before the count that makes it visible, and readers only go back capacity - SLACK points so the
+ * writer can get a little ahead of them without overwriting what they are reading
+ */
+public class PointRing {
+
+    private static final int SLACK = 1024;
+
+    private final float[] xs, ys;
+    private final long[] times;
+    private final int mask;
+    private volatile long written;
+
+    // capacity is rounded up to a power of two
+    public PointRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2 * SLACK) - 1) << 1;
+        xs = new float[size];
+        ys = new float[size];
+        times = new long[size];
+        mask = size - 1;
+    }
+
+    // Only ever from one thread
+    public void add(float x, float y, long time) {
+        long w = written;
+        int i = (int) (w & mask);
+        xs[i] = x;
+        ys[i] = y;
+        times[i] = time;
+        written = w + 1;
+    }
+
+    /**
+     * Calls the consumer with every point added at or after since, newest first
+     *
+     * @return how many points it went through
+     */
+    public int forEachSince(long since, TimedPointConsumer consumer) {
+        long w = written;
+        long oldest = Math.max(0, w - (mask + 1) + SLACK);
+        int count = 0;
+        for (long n = w - 1; n >= oldest; n--) {
+            int i = (int) (n & mask);
+            long time = times[i];
+            if (time < since) {
+                break; // Everything before it is older
+            }
+            consumer.accept(xs[i], ys[i], time);
+            count++;
+        }
+        return count;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+}
@@ -0,0 +1,34 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PointRingTest {
+
+    @Test
+    public void onlyGoesBackToSince() {
+        PointRing ring = new PointRing(4096);
+        for (int i = 0; i < 100; i++) {
+            ring.add(i, -i, i * 10);
+        }
+        List<Float> xs = new ArrayList<>();
+        assertEquals(5, ring.forEachSince(950, (x, y, time) -> xs.add(x)));
+        assertEquals(List.of(99f, 98f, 97f, 96f, 95f), xs); // Newest first
+    }
+
+    @Test
+    public void skipsWhatWasOverwritten() {
+        PointRing ring = new PointRing(4096);
+        for (int i = 0; i < 10000; i++) {
+            ring.add(i, i, i);
+        }
+        long[] oldest = {Long.MAX_VALUE};
+        int count = ring.forEachSince(0, (x, y, time) -> oldest[0] = Math.min(oldest[0], time));
+        assertTrue(count < 4096);
+        assertEquals(10000 - count, oldest[0]);
+    }
+}
@@ -0,0 +1,99 @@
+package com.palyrobotics.util;
+
+/**
+ * Matches every lidar point to the closest reference point
+ */
+class PointToPointSolver extends ICPSolver {
+
+    private final SpatialIndex reference;
+
+    PointToPointSolver(SpatialIndex reference, double maxDistanceSquared) {
+        super(maxDistanceSquared);
+        this.reference = reference;
+    }
+
+    @Override
+    boolean iterate() {
+        // The inverse brings lidar points into the reference frame
+        final double cos = Math.cos(theta), sin = Math.sin(theta);
+        final double invTx = -tx * cos - ty * sin;
+        final double invTy = tx * sin - ty * cos;
+
+        final double threshold = lastMeanDist;
+        final double[] xs = lidarOutput.xs(), ys = lidarOutput.ys();
+        final int size = lidarOutput.size();
+        final PointCloud referencePoints = reference.getPoints();
+        double sumDists = 0;
+
+        /// get pairs of corresponding points
+        double SumXa = 0, SumXb = 0, SumYa = 0, SumYb = 0;
+        double Sxx = 0, Sxy = 0, Syx = 0, Syy = 0;
+        int N = 0;
+        int unmatched = 0;
+        for (int i = 0; i < size; i++) {
+            final double px = xs[i], py = ys[i];
+            final double p2x = px * cos + py * sin + invTx;
+            final double p2y = -px * sin + py * cos + invTy;
+            int closest = reference.nearest(p2x, p2y, maxDistanceSquared);
+            if (closest < 0) {
+                unmatched++;
+                continue;
+            }
+            final double rx = referencePoints.getX(closest);
+            final double ry = referencePoints.getY(closest);
+            final double dx = p2x - rx, dy = p2y - ry;
+            double dist = Math.sqrt(dx * dx + dy * dy);
+            sumDists += dist;
+            if (dist > threshold) continue;
+            N++;
+
+            // Compute the terms:
+            SumXa += px;
+            SumYa += py;
+
+            SumXb += rx;
+            SumYb += ry;
+
+            Sxx += px * rx;
+            Sxy += px * ry;
+            Syx += py * rx;
+            Syy += py * ry;
+        }
+
+        lastMeanDist = sumDists / N;
+        iterations++;
+        if (N == 0) {
+            return false;
+        }
+        error = score(sumDists, unmatched);
+
+        /// calculate the new transform
+        // code based on http://mrpt.ual.es/reference/devel/se2__l2_8cpp_source.html#l00158
+        final double N_inv = 1.0 / N;
+
+        final double mean_x_a = SumXa * N_inv;
+        final double mean_y_a = SumYa * N_inv;
+        final double mean_x_b = SumXb * N_inv;
+        final double mean_y_b = SumYb * N_inv;
+
+        // Auxiliary variables Ax,Ay:
+        final double Ax = N * (Sxx + Syy) - SumXa * SumXb - SumYa * SumYb;
+        final double Ay = SumXa * SumYb + N * (Syx - Sxy) - SumXb * SumYa;
+
+        final double newTheta = (Ax == 0 && Ay == 0) ? 0.0 : Math.atan2(Ay, Ax);
+
+        final double ccos = Math.cos(newTheta);
+        final double csin = Math.sin(newTheta);
+
+        final double newTx = mean_x_a - mean_x_b * ccos + mean_y_b * csin;
+        final double newTy = mean_y_a - mean_x_b * csin - mean_y_b * ccos;
+
+        converged = Math.abs(theta - newTheta) < angleThreshold &&
+                Math.abs(tx - newTx) < translationThreshold &&
+                Math.abs(ty - newTy) < translationThreshold;
+        theta = newTheta;
+        tx = newTx;
+        ty = newTy;
+        return true;
+    }
+}
@@ -0,0 +1,7 @@
+package com.palyrobotics.util;
+
+// Gets every pose a LocalizationWorker matched, on the worker's thread. The revolution is only valid during the call
+@FunctionalInterface
+public interface PoseListener {
+    void onPose(Revolution revolution, ICPResult result);
+}
@@ -0,0 +1,32 @@
+package com.palyrobotics.util;
+
+/**
+ * One complete lidar revolution from a RevolutionAssembler. The assembler reuses it once the consumer asks for another
+ * one, so it is only valid until the next poll or await call
+ */
+public class Revolution {
+
+    final PointCloud points = new PointCloud(1024);
+    long id;
+    long timestamp;
+    long endTime;
+
+    public PointCloud getPoints() {
+        return points;
+    }
+
+    // Counts every completed revolution, so gaps mean revolutions were dropped or skipped
+    public long getId() {
+        return id;
+    }
+
+    // System.nanoTime() when the revolution was completed
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // When the last sample was measured, in the clock the samples came with. A deskewed revolution is as of this time
+    public long getEndTime() {
+        return endTime;
+    }
+}
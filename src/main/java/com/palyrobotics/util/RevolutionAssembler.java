@@ -0,0 +1,218 @@
+package com.palyrobotics.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Builds revolutions out of lidar samples on one thread (the network thread) and hands them to one other thread
+ * (whatever runs ICP) through a ring of preallocated revolutions, without locks and without making the producer wait.
+ * <p>
+ * The producer always writes into the slot after the last published one. The consumer holds the slot it got last until
+ * it asks for another one. The consumer can take every revolution in order with pollNext, or only the newest one with
+ * pollLatest, which skips whatever it did not get to. When the consumer falls so far behind that the producer would have
+ * to write into a slot that is unread or held, the finished revolution is dropped, unless the consumer has been taking
+ * the newest ones: then the oldest unread revolution is skipped and its slot swapped in for the held one, so the
+ * newest revolution is always there to take
+ */
+public class RevolutionAssembler {
+
+    private static final int DEFAULT_CAPACITY = 4;
+
+    private final Revolution[] slots;
+    private final ScanFilter filter; // Producer only
+
+    // Each of these only has one writer
+    private volatile long published; // Producer, the amount of revolutions the consumer can see
+    private final AtomicLong consumed = new AtomicLong(); // Slot consumed - 1 is the one the consumer is holding.
+                                                          // The consumer moves it on, the producer only when reclaiming
+    private volatile long dropped; // Producer
+    private volatile long reclaimed; // Producer
+    private volatile long skipped; // Consumer
+    private volatile boolean latestOnly; // Consumer, set once it uses pollLatest
+    private volatile Thread waiter; // Consumer, so the producer knows who to wake up
+
+    // Only touched by the producer
+    private long completed;
+    private float lastAngle;
+    private long lastTime;
+
+    public RevolutionAssembler() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RevolutionAssembler(int capacity) {
+        this(capacity, new ScanFilter());
+    }
+
+    // Samples go through the filter as they come in, the default one only drops samples without a distance
+    public RevolutionAssembler(ScanFilter filter) {
+        this(DEFAULT_CAPACITY, filter);
+    }
+
+    public RevolutionAssembler(int capacity, ScanFilter filter) {
+        this.filter = filter;
+        if (capacity < 3) { // One being written, one held by the consumer and at least one to publish
+            throw new IllegalArgumentException("RevolutionAssembler needs a capacity of at least 3");
+        }
+        slots = new Revolution[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Revolution();
+        }
+    }
+
+    // Producer side
+
+    public void addSample(float theta, float r) {
+        if (lastAngle > theta) { // The angle wrapped around, so the revolution is done
+            completeRevolution();
+        }
+        filter.add(theta, r, slot(published).points);
+        lastAngle = theta;
+    }
+
+    // For samples with the time they were measured at, which the filter's deskew needs
+    public void addSample(float theta, float r, long time) {
+        if (lastAngle > theta) {
+            completeRevolution();
+        }
+        filter.add(theta, r, time, slot(published).points);
+        lastAngle = theta;
+        lastTime = time;
+    }
+
+    public void completeRevolution() {
+        long p = published;
+        Revolution revolution = slot(p);
+        filter.finish(revolution.points);
+        if (revolution.points.size() == 0) {
+            return;
+        }
+        completed++;
+
+        if (p - consumed.get() > slots.length - 3 && !(latestOnly && reclaim(p))) {
+            // Publishing would make the producer's next slot one the consumer still needs
+            dropped = dropped + 1;
+            revolution.points.clear();
+            return;
+        }
+        revolution.id = completed;
+        revolution.timestamp = System.nanoTime();
+        revolution.endTime = lastTime;
+        published = p + 1;
+        slot(p + 1).points.clear();
+
+        Thread waiting = waiter;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /*
+     * Takes the oldest unread slot away from the consumer and swaps it with the held one, which is the slot after p, so
+     * the held revolution is in slot consumed - 1 again and the producer can go on. False if the consumer took something
+     * in the meantime and there is nothing to reclaim anymore
+     */
+    private boolean reclaim(long p) {
+        while (true) {
+            long c = consumed.get();
+            if (p - c <= slots.length - 3) {
+                return true; // The consumer caught up
+            }
+            if (consumed.compareAndSet(c, c + 1)) {
+                // The consumer can't be reading either slot: c is consumed now and it only reads slots after that
+                int unread = (int) (c % slots.length), held = (int) Math.floorMod(c - 1, (long) slots.length);
+                Revolution oldest = slots[unread];
+                slots[unread] = slots[held];
+                slots[held] = oldest;
+                reclaimed = reclaimed + 1;
+                return true;
+            }
+        }
+    }
+
+    // Consumer side
+
+    /**
+     * @return the oldest revolution that has not been taken yet, or null if there is none
+     */
+    public Revolution pollNext() {
+        while (true) {
+            long c = consumed.get();
+            if (c >= published) {
+                return null;
+            }
+            Revolution revolution = slot(c); // Before moving on, once consumed moves the producer may reclaim around it
+            if (consumed.compareAndSet(c, c + 1)) {
+                return revolution;
+            }
+        }
+    }
+
+    /**
+     * @return the newest revolution if it has not been taken yet, or null. Anything older is skipped
+     */
+    public Revolution pollLatest() {
+        latestOnly = true;
+        while (true) {
+            long c = consumed.get(); // Before published, so nothing newer can be missed if it looks like there is nothing
+            long p = published;
+            if (c >= p) {
+                return null;
+            }
+            Revolution revolution = slot(p - 1);
+            if (consumed.compareAndSet(c, p)) {
+                skipped = skipped + p - c - 1;
+                return revolution;
+            }
+        }
+    }
+
+    public Revolution awaitNext(long timeoutNanos) throws InterruptedException {
+        return await(false, timeoutNanos);
+    }
+
+    public Revolution awaitLatest(long timeoutNanos) throws InterruptedException {
+        return await(true, timeoutNanos);
+    }
+
+    private Revolution await(boolean latest, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        waiter = Thread.currentThread(); // Set before polling so a revolution published in between still unparks us
+        try {
+            while (true) {
+                Revolution revolution = latest ? pollLatest() : pollNext();
+                if (revolution != null) {
+                    return revolution;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    // Revolutions the producer threw away because the consumer was too far behind
+    public long getDroppedRevolutions() {
+        return dropped;
+    }
+
+    // Revolutions pollLatest jumped over, or the producer took back because a newer one came in
+    public long getSkippedRevolutions() {
+        return skipped + reclaimed;
+    }
+
+    public long getPublishedRevolutions() {
+        return published;
+    }
+
+    private Revolution slot(long i) {
+        return slots[(int) (i % slots.length)];
+    }
+}
@@ -0,0 +1,53 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RevolutionAssemblerTest {
+
+    // One sample straight ahead at the given distance, so every revolution can be told apart by its point
+    private static void revolution(RevolutionAssembler assembler, float distance) {
+        assembler.addSample(0, distance);
+        assembler.completeRevolution();
+    }
+
+    @Test
+    public void latestKeepsTheNewestWhenTheConsumerFallsBehind() {
+        RevolutionAssembler assembler = new RevolutionAssembler(4);
+        revolution(assembler, 100);
+        Revolution held = assembler.pollLatest();
+        assertEquals(1, held.getId());
+
+        for (int i = 2; i <= 6; i++) { // Two more than there is room for while one is held
+            revolution(assembler, 100 * i);
+        }
+        assertEquals(0, assembler.getDroppedRevolutions());
+        assertEquals(100, held.getPoints().getX(0), 1e-6); // The producer never wrote into the held one
+
+        Revolution latest = assembler.pollLatest();
+        assertEquals(6, latest.getId());
+        assertEquals(600, latest.getPoints().getX(0), 1e-6);
+        assertEquals(4, assembler.getSkippedRevolutions());
+        assertNull(assembler.pollLatest());
+
+        revolution(assembler, 700);
+        assertEquals(700, assembler.pollLatest().getPoints().getX(0), 1e-6);
+        assertEquals(600, latest.getPoints().getX(0), 1e-6);
+    }
+
+    @Test
+    public void nextDropsWhatDoesNotFit() {
+        RevolutionAssembler assembler = new RevolutionAssembler(4);
+        revolution(assembler, 100);
+        assertEquals(1, assembler.pollNext().getId());
+        for (int i = 2; i <= 6; i++) {
+            revolution(assembler, 100 * i);
+        }
+        assertEquals(3, assembler.getDroppedRevolutions()); // Every revolution is taken in order, so the new ones go
+
+        assertEquals(200, assembler.pollNext().getPoints().getX(0), 1e-6);
+        assertEquals(300, assembler.pollNext().getPoints().getX(0), 1e-6);
+        assertNull(assembler.pollNext());
+    }
+}
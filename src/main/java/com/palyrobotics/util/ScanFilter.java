@@ -0,0 +1,210 @@
+package com.palyrobotics.util;
+
+/**
+ * Cleans up lidar samples as they come in, so by the time a revolution is complete its points are ready for ICP:
+ * <ol>
+ *     <li>Samples outside the range are dropped, which includes the 0 the lidar sends when nothing came back</li>
+ *     <li>Samples next to each other are merged into their centroid, either everything in the same angle bin
+ *     (setTargetPoints) or everything in the same voxel (setVoxelSize). A jump in distance always starts a new point,
+ *     so the edge of a wall and whatever is behind it don't get averaged into a point in the air</li>
+ *     <li>Points much further from both of their neighbours than points usually are get dropped as outliers.
+ *     The spacing is divided by the distance (further points are naturally further apart) and its mean and deviation
+ *     are kept across revolutions, so a point can be judged as soon as the one after it is in</li>
+ * </ol>
+ * With a Deskew and sample times, samples are also moved to make up for the lidar moving during the revolution before
+ * they get merged. Only the defaults (dropping samples with no distance) are on unless they are set. One thread at a time
+ */
+public class ScanFilter {
+
+    private static final double MIN_JUMP = 50; // mm, distance changes smaller than this never split a point
+    private static final double RELATIVE_JUMP = 0.05; // Of the distance
+    private static final double STATS_SMOOTHING = 0.01;
+    private static final int STATS_WARMUP = 100; // Points before anything gets judged as an outlier
+    private static final double MIN_OUTLIER_SPACING = 1.5; // Times the mean, for when everything is spaced the same and the deviation is 0
+
+    private double minRange = 0; // Exclusive, so 0 is rejected
+    private double maxRange = Double.POSITIVE_INFINITY;
+    private double binWidth; // Degrees, 0 is off
+    private double voxelSize; // mm, 0 is off
+    private double outlierDeviations; // 0 is off
+    private Deskew deskew; // null is off
+    private final double[] corrected = new double[2];
+
+    // The point being merged
+    private double sumX, sumY, sumRange;
+    private int count;
+    private long group;
+    private double lastX, lastY, lastRange;
+
+    // The outlier stage is one point behind, a point needs the one after it to be judged
+    private boolean hasPrevious, hasPending;
+    private double previousX, previousY;
+    private double pendingX, pendingY, pendingRange, pendingPreviousDistance;
+    private double meanSpacing, spacingVariance;
+    private long spacings;
+
+    private long outOfRange, merged, outliers;
+
+    public void setRange(double minRange, double maxRange) {
+        this.minRange = minRange;
+        this.maxRange = maxRange;
+    }
+
+    // Angle bins that give about this many points per revolution, 0 turns it off
+    public void setTargetPoints(int points) {
+        this.binWidth = points > 0 ? 360.0 / points : 0;
+        this.voxelSize = 0;
+    }
+
+    // 0 turns it off
+    public void setVoxelSize(double voxelSize) {
+        this.voxelSize = voxelSize;
+        this.binWidth = 0;
+    }
+
+    // How many standard deviations over the mean spacing makes an outlier, 3 is a good start and 0 turns it off
+    public void setOutlierDeviations(double deviations) {
+        this.outlierDeviations = deviations;
+    }
+
+    // Only used for samples added with their time
+    public void setDeskew(Deskew deskew) {
+        this.deskew = deskew;
+    }
+
+    public void add(double thetaDegrees, double r, PointCloud out) {
+        if (!(r > minRange && r <= maxRange)) {
+            outOfRange++;
+            return;
+        }
+        double theta = Math.toRadians(thetaDegrees);
+        add(thetaDegrees, r, r * Math.cos(theta), r * Math.sin(theta), out);
+    }
+
+    // Same as above for a sample measured at time, which the deskew needs
+    public void add(double thetaDegrees, double r, long time, PointCloud out) {
+        if (deskew == null) {
+            add(thetaDegrees, r, out);
+            return;
+        }
+        deskew.sample(time);
+        if (!(r > minRange && r <= maxRange)) {
+            outOfRange++;
+            return;
+        }
+        double theta = Math.toRadians(thetaDegrees);
+        deskew.toStart(r * Math.cos(theta), r * Math.sin(theta), time, corrected);
+        add(thetaDegrees, r, corrected[0], corrected[1], out);
+    }
+
+    // The bins go by the angle the sample was measured at, the voxels by where it ended up
+    private void add(double thetaDegrees, double r, double x, double y, PointCloud out) {
+        long key;
+        if (binWidth > 0) {
+            key = (long) Math.floor(thetaDegrees / binWidth);
+        } else if (voxelSize > 0) {
+            key = (long) Math.floor(x / voxelSize) << 32 ^ ((long) Math.floor(y / voxelSize) & 0xFFFFFFFFL);
+        } else {
+            addPoint(x, y, r, out);
+            return;
+        }
+
+        if (count > 0 && (key != group || Math.abs(r - lastRange) > Math.max(MIN_JUMP, RELATIVE_JUMP * r))) {
+            flushGroup(out);
+        }
+        if (count > 0) {
+            merged++;
+        }
+        group = key;
+        sumX += x;
+        sumY += y;
+        sumRange += r;
+        count++;
+        lastX = x;
+        lastY = y;
+        lastRange = r;
+    }
+
+    // The revolution is complete, everything still held back goes out and the next revolution starts fresh
+    public void finish(PointCloud out) {
+        flushGroup(out);
+        if (hasPending) {
+            judge(pendingPreviousDistance, out);
+        }
+        hasPrevious = false;
+        hasPending = false;
+        if (deskew != null) {
+            deskew.finish(out);
+        }
+    }
+
+    private void flushGroup(PointCloud out) {
+        if (count == 0) {
+            return;
+        }
+        if (count == 1) {
+            addPoint(lastX, lastY, lastRange, out);
+        } else {
+            addPoint(sumX / count, sumY / count, sumRange / count, out);
+        }
+        sumX = sumY = sumRange = 0;
+        count = 0;
+    }
+
+    private void addPoint(double x, double y, double r, PointCloud out) {
+        if (outlierDeviations <= 0) {
+            out.addPoint(x, y);
+            return;
+        }
+        if (hasPending) {
+            double nextDistance = Math.hypot(x - pendingX, y - pendingY);
+            judge(Math.min(pendingPreviousDistance, nextDistance), out);
+        }
+        pendingX = x;
+        pendingY = y;
+        pendingRange = r;
+        pendingPreviousDistance = hasPrevious ? Math.hypot(x - previousX, y - previousY) : Double.POSITIVE_INFINITY;
+        hasPending = true;
+    }
+
+    // Decides on the pending point given the distance to its closest neighbour
+    private void judge(double neighbourDistance, PointCloud out) {
+        hasPending = false;
+        if (Double.isInfinite(neighbourDistance)) { // Alone in the revolution, nothing to compare with
+            keep(out);
+            return;
+        }
+        double spacing = neighbourDistance / pendingRange;
+        double limit = Math.max(meanSpacing + outlierDeviations * Math.sqrt(spacingVariance), meanSpacing * MIN_OUTLIER_SPACING);
+        if (spacings >= STATS_WARMUP && spacing > limit) {
+            outliers++;
+            return; // The previous point stays the neighbour of the next one
+        }
+        double difference = spacing - meanSpacing;
+        meanSpacing = spacings == 0 ? spacing : meanSpacing + difference * STATS_SMOOTHING;
+        spacingVariance += (difference * difference - spacingVariance) * STATS_SMOOTHING;
+        spacings++;
+        keep(out);
+    }
+
+    private void keep(PointCloud out) {
+        out.addPoint(pendingX, pendingY);
+        previousX = pendingX;
+        previousY = pendingY;
+        hasPrevious = true;
+    }
+
+    // Samples dropped for their distance
+    public long getOutOfRange() {
+        return outOfRange;
+    }
+
+    // Samples that went into another sample's point
+    public long getMerged() {
+        return merged;
+    }
+
+    public long getOutliers() {
+        return outliers;
+    }
+}
@@ -0,0 +1,65 @@
+package com.palyrobotics.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanFilterTest {
+
+    // A circle 2m around the lidar, 720 samples
+    private static void circle(ScanFilter filter, PointCloud out) {
+        for (int i = 0; i < 720; i++) {
+            filter.add(i / 2.0, i % 10 == 0 ? 0 : 2000, out); // Every tenth sample has no return
+        }
+        filter.finish(out);
+    }
+
+    @Test
+    public void dropsSamplesWithoutADistance() {
+        ScanFilter filter = new ScanFilter();
+        PointCloud out = new PointCloud();
+        circle(filter, out);
+        assertEquals(648, out.size());
+        assertEquals(72, filter.getOutOfRange());
+        for (int i = 0; i < out.size(); i++) {
+            assertEquals(2000, Math.hypot(out.getX(i), out.getY(i)), 1e-6);
+        }
+    }
+
+    @Test
+    public void binsDownToTheTarget() {
+        ScanFilter filter = new ScanFilter();
+        filter.setTargetPoints(180);
+        PointCloud out = new PointCloud();
+        circle(filter, out);
+        assertEquals(180, out.size());
+    }
+
+    @Test
+    public void keepsEdgesApart() {
+        ScanFilter filter = new ScanFilter();
+        filter.setTargetPoints(4); // 90 degree bins
+        PointCloud out = new PointCloud();
+        filter.add(10, 1000, out);
+        filter.add(20, 1000, out);
+        filter.add(30, 3000, out); // Same bin, but a wall further back
+        filter.finish(out);
+        assertEquals(2, out.size());
+    }
+
+    @Test
+    public void removesStrayPoints() {
+        ScanFilter filter = new ScanFilter();
+        filter.setOutlierDeviations(3);
+        PointCloud out = new PointCloud();
+        for (int revolution = 0; revolution < 2; revolution++) {
+            out.clear();
+            for (int i = 0; i < 720; i++) {
+                filter.add(i / 2.0, i == 360 ? 600 : 2000, out); // Dust in front of the lidar at 180 degrees
+            }
+            filter.finish(out);
+        }
+        assertEquals(719, out.size());
+        assertEquals(2, filter.getOutliers()); // The first revolution had already warmed up by 180 degrees
+    }
+}
@@ -1,5 +1,7 @@
 package com.palyrobotics.util;
 
+import java.util.Locale;
+
 public class Segment {
 
     Point p1, p2;
@@ -22,4 +24,33 @@ public class Segment {
 
         return Math.abs(dot) / Math.sqrt(lenSquared);
     }
+
+    // Unlike getDistance this is to the segment itself, not the infinite line through it
+    public double getDistanceToSegment(Point p) {
+        double deltaPX = p2.x - p1.x;
+        double deltaPY = p2.y - p1.y;
+        double lenSquared = deltaPX * deltaPX + deltaPY * deltaPY;
+        double t = lenSquared == 0 ? 0 : ((p.x - p1.x) * deltaPX + (p.y - p1.y) * deltaPY) / lenSquared;
+        t = Math.max(0, Math.min(1, t));
+        double dx = p.x - (p1.x + t * deltaPX);
+        double dy = p.y - (p1.y + t * deltaPY);
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    public double getLength() {
+        return p1.distanceTo(p2);
+    }
+
+    public Point getStart() {
+        return p1;
+    }
+
+    public Point getEnd() {
+        return p2;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%f,%f,%f,%f", p1.x, p1.y, p2.x, p2.y);
+    }
 }
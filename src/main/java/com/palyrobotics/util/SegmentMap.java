@@ -0,0 +1,220 @@
+package com.palyrobotics.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A reference made of wall segments for point to line ICP.
+ * Every segment is sampled every sampleSpacing into a k-d tree that remembers which segment each sample came from,
+ * so finding the closest segment is a single tree query instead of checking every segment
+ */
+public class SegmentMap {
+
+    public static final double DEFAULT_SAMPLE_SPACING = 50;
+
+    // Defaults for fitting segments to a scan, all in the same units as the scan (mm for the lidar)
+    public static final double DEFAULT_MAX_ERROR = 30;
+    public static final double DEFAULT_MAX_GAP = 300;
+    public static final int DEFAULT_MIN_POINTS = 5;
+
+    private final List<Segment> segments;
+    private final double[] normalXs, normalYs, offsets; // Every segment's line is normal . p = offset
+
+    private final PointCloud samples;
+    private final int[] owners; // The segment every sample is on
+    private final KdTree index;
+
+    public SegmentMap(List<Segment> segments) {
+        this(segments, DEFAULT_SAMPLE_SPACING);
+    }
+
+    public SegmentMap(List<Segment> segments, double sampleSpacing) {
+        this.segments = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.getLength() > 0) { // A point has no normal
+                this.segments.add(segment);
+            }
+        }
+
+        int count = this.segments.size();
+        normalXs = new double[count];
+        normalYs = new double[count];
+        offsets = new double[count];
+        samples = new PointCloud(count * 4);
+        List<Integer> sampleOwners = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Segment segment = this.segments.get(i);
+            Point start = segment.getStart(), end = segment.getEnd();
+            double length = segment.getLength();
+            normalXs[i] = -(end.y - start.y) / length;
+            normalYs[i] = (end.x - start.x) / length;
+            offsets[i] = normalXs[i] * start.x + normalYs[i] * start.y;
+
+            int steps = Math.max(1, (int) Math.ceil(length / sampleSpacing));
+            for (int step = 0; step <= steps; step++) {
+                double t = step / (double) steps;
+                samples.addPoint(start.x + (end.x - start.x) * t, start.y + (end.y - start.y) * t);
+                sampleOwners.add(i);
+            }
+        }
+        owners = sampleOwners.stream().mapToInt(Integer::intValue).toArray();
+        index = new KdTree(samples);
+    }
+
+    /**
+     * Fits segments to a scan that is in angle order, like a revolution from the lidar.
+     * Runs of points closer than maxGap to each other are split where they bend more than maxError (Douglas Peucker),
+     * and pieces with fewer than minPoints points are thrown out
+     */
+    public static SegmentMap fit(PointCloud scan, double maxError, double maxGap, int minPoints) {
+        List<Segment> segments = new ArrayList<>();
+        double maxGapSquared = maxGap * maxGap;
+
+        int runStart = -1, last = -1;
+        for (int i = 0; i < scan.size(); i++) {
+            if (scan.getX(i) == 0 && scan.getY(i) == 0) { // Invalid returns end up at the origin
+                continue;
+            }
+            if (last >= 0) {
+                double dx = scan.getX(i) - scan.getX(last), dy = scan.getY(i) - scan.getY(last);
+                if (dx * dx + dy * dy > maxGapSquared) {
+                    split(scan, runStart, last, maxError, minPoints, segments);
+                    runStart = -1;
+                }
+            }
+            if (runStart < 0) {
+                runStart = i;
+            }
+            last = i;
+        }
+        if (runStart >= 0) {
+            split(scan, runStart, last, maxError, minPoints, segments);
+        }
+        return new SegmentMap(segments);
+    }
+
+    public static SegmentMap fit(PointCloud scan) {
+        return fit(scan, DEFAULT_MAX_ERROR, DEFAULT_MAX_GAP, DEFAULT_MIN_POINTS);
+    }
+
+    // Indices first to last are a run without gaps, points at the origin in between are skipped
+    private static void split(PointCloud scan, int first, int last, double maxError, int minPoints, List<Segment> segments) {
+        if (last - first + 1 < minPoints) {
+            return;
+        }
+        Segment segment = new Segment(scan.getPoint(first), scan.getPoint(last));
+        double maxDistance = -1;
+        int furthest = -1;
+        for (int i = first + 1; i < last; i++) {
+            if (scan.getX(i) == 0 && scan.getY(i) == 0) {
+                continue;
+            }
+            double distance = segment.getDistanceToSegment(scan.getPoint(i));
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                furthest = i;
+            }
+        }
+
+        if (maxDistance > maxError) {
+            split(scan, first, furthest, maxError, minPoints, segments);
+            split(scan, furthest, last, maxError, minPoints, segments);
+        } else {
+            segments.add(segment);
+        }
+    }
+
+    // Every line is a segment as x1,y1,x2,y2
+    public static SegmentMap load(String file) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        try (BufferedReader bf = new BufferedReader(new FileReader(file))) {
+            while (true) {
+                String line = bf.readLine();
+                if (line == null) {
+                    break;
+                }
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                var split = line.split(",");
+                segments.add(new Segment(new Point(Double.parseDouble(split[0]), Double.parseDouble(split[1])),
+                                         new Point(Double.parseDouble(split[2]), Double.parseDouble(split[3]))));
+            }
+        }
+        return new SegmentMap(segments);
+    }
+
+    public void save(String file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            for (Segment segment : segments) {
+                out.println(segment);
+            }
+        }
+    }
+
+    /**
+     * @return the index of the segment closest to the point (within the sample spacing), or -1 if none is within the distance
+     */
+    public int nearest(double x, double y, double maxDistanceSquared) {
+        int sample = index.nearest(x, y, maxDistanceSquared);
+        return sample < 0 ? -1 : owners[sample];
+    }
+
+    // Signed distance from the segment's line, positive on the side its normal points to
+    public double getDistance(int segment, double x, double y) {
+        return normalXs[segment] * x + normalYs[segment] * y - offsets[segment];
+    }
+
+    /**
+     * Casts a ray from (x, y) in the direction of angle (radians) and finds where it first hits a segment.
+     * Goes through every segment, it is meant for simulations, not for anything that runs every sample
+     *
+     * @return the distance to the hit, or infinity if the ray hits nothing
+     */
+    public double raycast(double x, double y, double angle) {
+        final double dx = Math.cos(angle), dy = Math.sin(angle);
+        double closest = Double.POSITIVE_INFINITY;
+        for (Segment segment : segments) {
+            Point start = segment.getStart(), end = segment.getEnd();
+            final double ex = end.x - start.x, ey = end.y - start.y;
+            final double denominator = dx * ey - dy * ex;
+            if (denominator == 0) { // Parallel to the ray
+                continue;
+            }
+            final double sx = start.x - x, sy = start.y - y;
+            final double t = (sx * ey - sy * ex) / denominator; // Along the ray
+            final double u = (sx * dy - sy * dx) / denominator; // Along the segment
+            if (t >= 0 && u >= 0 && u <= 1 && t < closest) {
+                closest = t;
+            }
+        }
+        return closest;
+    }
+
+    public double getNormalX(int segment) {
+        return normalXs[segment];
+    }
+
+    public double getNormalY(int segment) {
+        return normalYs[segment];
+    }
+
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    // The samples along the segments, which also work as a reference for point to point ICP
+    public PointCloud getPoints() {
+        return samples;
+    }
+
+    public int size() {
+        return segments.size();
+    }
+}
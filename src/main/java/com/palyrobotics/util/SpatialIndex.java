@@ -0,0 +1,16 @@
+package com.palyrobotics.util;
+
+/**
+ * Answers closest point queries against a reference cloud faster than scanning it.
+ * Implementations are built once and never change afterwards, so they can be queried from several threads at once
+ */
+public interface SpatialIndex {
+
+    /**
+     * @param maxDistanceSquared points further away than this are ignored, use Double.POSITIVE_INFINITY for no limit
+     * @return the index in getPoints() of the closest point, or -1 if none is close enough
+     */
+    int nearest(double x, double y, double maxDistanceSquared);
+
+    PointCloud getPoints();
+}
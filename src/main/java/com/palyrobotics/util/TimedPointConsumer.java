@@ -0,0 +1,7 @@
+package com.palyrobotics.util;
+
+// A point and when it came in, for going through a PointRing
+@FunctionalInterface
+public interface TimedPointConsumer {
+    void accept(float x, float y, long time);
+}
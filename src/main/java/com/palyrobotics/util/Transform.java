@@ -3,10 +3,10 @@ package com.palyrobotics.util;
 public class Transform {
 
     public final double theta, tx, ty;
+    private final double cos, sin; // Cached since every apply needs them
 
     public Transform() {
-        theta = 0;
-        tx = ty = 0;
+        this(0, 0, 0);
     }
 
     // Theta is in radians obviously cus im not savage also cus im lazy and dont want to convert to radians each time i use math
@@ -14,21 +14,48 @@ public class Transform {
         this.theta = theta;
         this.tx = tx;
         this.ty = ty;
+        this.cos = Math.cos(theta);
+        this.sin = Math.sin(theta);
     }
 
     // The following functions apply the transform onto various classes
     public Point apply(Point t) {
-        return new Point(t.x * Math.cos(theta) - t.y * Math.sin(theta) + tx,
-                t.x * Math.sin(theta) + t.y * Math.cos(theta) + ty);
+        return new Point(t.x * cos - t.y * sin + tx,
+                t.x * sin + t.y * cos + ty);
     }
 
-//    public PointCloud apply(PointCloud t) {
-//    }
+    public PointCloud apply(PointCloud t) {
+        PointCloud transformed = new PointCloud(t.size());
+        apply(t, transformed);
+        return transformed;
+    }
+
+    // Writes the transformed points into destination, which can be the same cloud as source
+    public void apply(PointCloud source, PointCloud destination) {
+        destination.setSize(source.size());
+        apply(source.xs(), source.ys(), source.size(), destination.xs(), destination.ys());
+    }
+
+    // Transforms the first count points into the out arrays, which can be the same arrays as the input
+    public void apply(double[] xs, double[] ys, int count, double[] outXs, double[] outYs) {
+        for (int i = 0; i < count; i++) {
+            final double x = xs[i], y = ys[i];
+            outXs[i] = x * cos - y * sin + tx;
+            outYs[i] = x * sin + y * cos + ty;
+        }
+    }
+
+    // The transform that applies other first and then this one
+    public Transform compose(Transform other) {
+        return new Transform(theta + other.theta,
+                other.tx * cos - other.ty * sin + tx,
+                other.tx * sin + other.ty * cos + ty);
+    }
 
     public Transform inverse() {
         return new Transform(-theta,
-                -tx * Math.cos(theta) - ty * Math.sin(theta),
-                tx * Math.sin(theta) - ty * Math.cos(theta));
+                -tx * cos - ty * sin,
+                tx * sin - ty * cos);
     }
 
     @Override